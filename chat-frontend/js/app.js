@@ -4,8 +4,16 @@ document.addEventListener('DOMContentLoaded', () => {
     const sendButton = document.getElementById('sendButton');
     const stopButton = document.getElementById('stopButton');
 
-    let typingInterval = null; // 用于保存打字定时器
-    let isTyping = false;       // 当前是否正在打字
+    // /ws/chat 是SockJS端点，原生WebSocket走它的 /websocket 传输
+    const WS_URL = 'ws://localhost:8080/ws/chat/websocket';
+    const RECONNECT_BASE_DELAY = 500;
+    const RECONNECT_MAX_DELAY = 10000;
+
+    let socket = null;
+    let reconnectAttempts = 0;
+    let reconnectTimer = null;
+    let pendingQuestion = null; // 断线期间输入的问题，连上后再发
+    let current = null;         // 当前正在接收的回答
 
     function formatTime(date) {
         const hours = String(date.getHours()).padStart(2, '0');
@@ -13,10 +21,18 @@ document.addEventListener('DOMContentLoaded', () => {
         return `${hours}:${minutes}`;
     }
 
+    function isNearBottom() {
+        return chatMessages.scrollHeight - chatMessages.scrollTop - chatMessages.clientHeight < 40;
+    }
+
+    function scrollToBottom() {
+        chatMessages.scrollTop = chatMessages.scrollHeight;
+    }
+
     function addMessage(text, isUser, isLoading = false) {
         const messageDiv = document.createElement('div');
         messageDiv.className = `message ${isUser ? 'user' : 'bot'}`;
-        
+
         const avatarImg = document.createElement('img');
         avatarImg.className = 'message-avatar';
         avatarImg.src = isUser ? 'images/user-logo.png' : 'images/bot-logo.png';
@@ -26,31 +42,12 @@ document.addEventListener('DOMContentLoaded', () => {
 
         const contentDiv = document.createElement('div');
         contentDiv.className = 'message-content';
-        
+
         if (isLoading) {
             contentDiv.textContent = '正在思考...';
             contentDiv.classList.add('loading');
         } else {
-            if (isUser) {
-                contentDiv.textContent = text;
-            } else {
-                contentDiv.textContent = '';
-                let i = 0;
-                const speed = 50;
-                isTyping = true;
-                stopButton.style.display = 'inline-block'; // 显示停止按钮
-
-                typingInterval = setInterval(() => {
-                    if (i < text.length) {
-                        contentDiv.textContent += text.charAt(i);
-                        i++;
-                    } else {
-                        clearInterval(typingInterval);
-                        isTyping = false;
-                        stopButton.style.display = 'none'; // 隐藏停止按钮
-                    }
-                }, speed);
-            }
+            contentDiv.textContent = text;
         }
 
         const timeDiv = document.createElement('div');
@@ -62,45 +59,236 @@ document.addEventListener('DOMContentLoaded', () => {
         messageDiv.appendChild(avatarImg);
         messageDiv.appendChild(bubbleDiv);
 
+        const stickToBottom = isNearBottom();
         chatMessages.appendChild(messageDiv);
-        chatMessages.scrollTop = chatMessages.scrollHeight;
+        if (isUser || stickToBottom) {
+            scrollToBottom();
+        }
 
         return { messageDiv, contentDiv };
     }
 
+    function setAnswering(answering) {
+        sendButton.disabled = answering;
+        stopButton.style.display = answering ? 'inline-block' : 'none';
+    }
+
+    // ---------- 增量渲染：同一帧内到达的token合并成一次DOM写入 ----------
+
+    function startAnswer(question) {
+        const { contentDiv } = addMessage('', false, true);
+        current = {
+            question,
+            contentDiv,
+            textNode: null,
+            pending: '',
+            frameRequested: false,
+            stopped: false,
+            sentAt: performance.now(),
+            firstTokenAt: null
+        };
+        setAnswering(true);
+    }
+
+    function appendToken(content) {
+        if (!current || current.stopped) return;
+        if (current.firstTokenAt === null) {
+            current.firstTokenAt = performance.now();
+        }
+        const answer = current;
+        answer.pending += content;
+        if (!answer.frameRequested) {
+            answer.frameRequested = true;
+            // 绑定调度时的回答：回调执行时current可能已被complete清空，或者换成了下一个回答
+            requestAnimationFrame(() => flush(answer));
+        }
+    }
+
+    function flush(answer) {
+        answer.frameRequested = false;
+        if (!answer.pending || answer.stopped) return;
+
+        // 先读布局再写DOM，避免每个token都触发一次强制回流
+        const stickToBottom = isNearBottom();
+        if (answer.textNode === null) {
+            answer.contentDiv.classList.remove('loading');
+            answer.contentDiv.textContent = '';
+            answer.textNode = document.createTextNode('');
+            answer.contentDiv.appendChild(answer.textNode);
+            reportFirstToken(answer);
+        }
+        answer.textNode.appendData(answer.pending);
+        answer.pending = '';
+        if (stickToBottom) {
+            scrollToBottom();
+        }
+    }
+
+    function finishAnswer(fullText) {
+        if (!current) return;
+        const answer = current;
+        current = null;
+        if (!answer.stopped) {
+            flush(answer);
+            // complete帧带完整回答，兜底校正漏掉的增量
+            if (fullText && (answer.textNode === null || answer.textNode.data !== fullText)) {
+                answer.contentDiv.classList.remove('loading');
+                answer.contentDiv.textContent = fullText;
+            }
+        }
+        setAnswering(false);
+    }
+
+    function failAnswer(message) {
+        if (current && current.stopped) {
+            // 已经停止的回答不再显示错误
+            current = null;
+        } else if (current) {
+            const answer = current;
+            current = null;
+            answer.stopped = true;
+            answer.contentDiv.classList.remove('loading');
+            if (answer.textNode === null) {
+                answer.contentDiv.textContent = message;
+            } else {
+                answer.textNode.appendData(`\n（${message}）`);
+            }
+        } else {
+            addMessage(message, false);
+        }
+        setAnswering(false);
+    }
+
     function stopTyping() {
-        if (isTyping) {
-            clearInterval(typingInterval);
-            isTyping = false;
-            stopButton.style.display = 'none';
+        if (!current || current.stopped) return;
+        current.stopped = true;
+        current.contentDiv.classList.remove('loading');
+        if (current.textNode === null) {
+            current.contentDiv.textContent = '（已停止）';
+        }
+        stopButton.style.display = 'none';
+        pendingQuestion = null;
+        // 通知服务端断开上游，收到stopped/complete/error之前不能继续提问，避免旧回答的帧混进新回答
+        if (!send({ type: 'stop' })) {
+            // 连接已断开，服务端会在连接关闭时自行清理
+            current = null;
+            setAnswering(false);
         }
     }
 
+    function answerStopped() {
+        if (current && current.stopped) {
+            current = null;
+            setAnswering(false);
+        }
+    }
+
+    // ---------- 首字延迟上报 ----------
+
+    function reportFirstToken(answer) {
+        const now = performance.now();
+        send({
+            type: 'metric',
+            name: 'ttft',
+            // 首个token到达和首次渲染到屏幕的时间，都从发送问题算起
+            value: Math.round(answer.firstTokenAt - answer.sentAt),
+            renderValue: Math.round(now - answer.sentAt)
+        });
+    }
+
+    // ---------- 连接管理：断线指数退避重连 ----------
+
+    function connect() {
+        reconnectTimer = null;
+        socket = new WebSocket(WS_URL);
+
+        socket.onopen = () => {
+            reconnectAttempts = 0;
+            if (pendingQuestion !== null) {
+                const question = pendingQuestion;
+                pendingQuestion = null;
+                send({ type: 'chat', content: question });
+            }
+        };
+
+        socket.onmessage = event => {
+            let data;
+            try {
+                data = JSON.parse(event.data);
+            } catch (e) {
+                console.error(e);
+                return;
+            }
+            switch (data.type) {
+                case 'stream':
+                    appendToken(data.content);
+                    break;
+                case 'complete':
+                    finishAnswer(data.content);
+                    break;
+                case 'error':
+                    failAnswer(data.content || '请求出错，请稍后再试。');
+                    break;
+                case 'stopped':
+                    answerStopped();
+                    break;
+                case 'reconnect':
+                    // 服务端正在停机排空，立即换一个连接；还没开始回答的问题在新连接上重发
+                    if (current && !current.stopped && current.textNode === null) {
+                        pendingQuestion = current.question;
+                    }
+                    socket.close();
+                    break;
+                default:
+                    break;
+            }
+        };
+
+        socket.onclose = () => {
+            socket = null;
+            // 有待重发的问题时保留当前气泡，连上后继续等回答
+            if (current && pendingQuestion === null) {
+                failAnswer('连接已断开，请重新提问。');
+            }
+            scheduleReconnect();
+        };
+
+        socket.onerror = () => {
+            // onclose会紧接着触发，重连在那里处理
+        };
+    }
+
+    function scheduleReconnect() {
+        if (reconnectTimer !== null) return;
+        const delay = Math.min(RECONNECT_MAX_DELAY, RECONNECT_BASE_DELAY * Math.pow(2, reconnectAttempts));
+        reconnectAttempts++;
+        // 加随机抖动，避免服务重启时所有页面同时重连
+        reconnectTimer = setTimeout(connect, delay / 2 + Math.random() * delay / 2);
+    }
+
+    function send(message) {
+        if (socket && socket.readyState === WebSocket.OPEN) {
+            socket.send(JSON.stringify(message));
+            return true;
+        }
+        return false;
+    }
+
     function sendMessage() {
         const text = userInput.value.trim();
-        if (!text) return;
+        if (!text || current) return;
 
         addMessage(text, true);
         userInput.value = '';
+        startAnswer(text);
 
-        const { messageDiv: loadingMsg } = addMessage('', false, true);
-
-        fetch('http://localhost:8080/chat/sync-test', {
-            method: 'POST',
-            headers: { 'Content-Type': 'application/json' },
-            body: JSON.stringify({ message: text })
-        })
-        .then(res => res.json())
-        .then(data => {
-            loadingMsg.remove();
-            const reply = data.fullResponse || '无法理解你的意思';
-            addMessage(reply, false);
-        })
-        .catch(err => {
-            console.error(err);
-            loadingMsg.remove();
-            addMessage('请求出错，请稍后再试。', false);
-        });
+        if (!send({ type: 'chat', content: text })) {
+            pendingQuestion = text;
+            if (socket === null) {
+                clearTimeout(reconnectTimer);
+                connect();
+            }
+        }
     }
 
     sendButton.addEventListener('click', sendMessage);
@@ -108,4 +296,6 @@ document.addEventListener('DOMContentLoaded', () => {
         if (e.key === 'Enter') sendMessage();
     });
     stopButton.addEventListener('click', stopTyping);
-});
\ No newline at end of file
+
+    connect();
+});
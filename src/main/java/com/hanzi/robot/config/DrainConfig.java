@@ -0,0 +1,17 @@
+package com.hanzi.robot.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "drain")
+public class DrainConfig {
+    /** 停机时是否等待进行中的回答结束 */
+    private Boolean enabled = true;
+    /** 等待进行中回答结束的最长时间，需小于容器的终止宽限期 */
+    private Duration timeout = Duration.ofSeconds(30);
+}
@@ -0,0 +1,23 @@
+package com.hanzi.robot.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "reaper")
+public class ReaperConfig {
+    /** 前端会话无任何收发的最长空闲时间 */
+    private Duration userIdleTimeout = Duration.ofMinutes(10);
+    /** 星火上游连续无帧的最长空闲时间 */
+    private Duration upstreamIdleTimeout = Duration.ofSeconds(60);
+    /** 单次回答的最长持续时间 */
+    private Duration maxAnswerDuration = Duration.ofMinutes(5);
+    /** 时间轮tick间隔 */
+    private Duration tickDuration = Duration.ofSeconds(1);
+    /** 时间轮槽位数 */
+    private Integer ticksPerWheel = 512;
+}
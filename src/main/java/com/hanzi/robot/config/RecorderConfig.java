@@ -0,0 +1,15 @@
+package com.hanzi.robot.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "recorder")
+public class RecorderConfig {
+    /** 是否录制星火上游的回答帧 */
+    private Boolean enabled = false;
+    /** 录制文件目录 */
+    private String directory = "recordings";
+}
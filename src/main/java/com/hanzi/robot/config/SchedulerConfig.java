@@ -0,0 +1,45 @@
+package com.hanzi.robot.config;
+
+import com.hanzi.robot.scheduler.PriorityClass;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "scheduler")
+public class SchedulerConfig {
+    /** 同时进行的星火上游请求上限 */
+    private Integer maxConcurrentStreams = 32;
+    // 接口和批量各自限并发，至少给实时聊天留出 32 - 16 - 8 = 8 个名额
+    private ClassConfig interactive = new ClassConfig(8, Duration.ofSeconds(5), null);
+    private ClassConfig api = new ClassConfig(2, Duration.ofSeconds(10), 16);
+    private ClassConfig bulk = new ClassConfig(1, Duration.ofSeconds(60), 8);
+
+    public ClassConfig of(PriorityClass priorityClass) {
+        switch (priorityClass) {
+            case INTERACTIVE:
+                return interactive;
+            case API:
+                return api;
+            default:
+                return bulk;
+        }
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class ClassConfig {
+        /** 加权公平排队的权重，队列都积压时按权重比例分配空出的名额 */
+        private Integer weight;
+        /** 排队超过该时间的请求直接拒绝 */
+        private Duration queueDeadline;
+        /** 本类别同时进行的上游请求上限，不配置则只受总上限限制 */
+        private Integer maxInFlight;
+    }
+}
@@ -0,0 +1,19 @@
+package com.hanzi.robot.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "startup")
+public class StartupConfig {
+    /** 就绪前是否预热Jackson、HMAC签名和到星火的TLS连接 */
+    private Boolean warmUp = false;
+    /** 预热上游连接的超时时间 */
+    private Duration warmUpTimeout = Duration.ofSeconds(5);
+    /** 预热完成后直接退出，用于生成AppCDS归档的训练运行 */
+    private Boolean exitAfterWarmUp = false;
+}
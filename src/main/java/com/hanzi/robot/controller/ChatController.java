@@ -5,21 +5,36 @@ package com.hanzi.robot.controller;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hanzi.robot.config.SchedulerConfig;
 import com.hanzi.robot.dto.ChatResponse;
 import com.hanzi.robot.dto.PostmanTestResponse;
+import com.hanzi.robot.jfr.ChatTrace;
+import com.hanzi.robot.scheduler.PriorityClass;
+import com.hanzi.robot.scheduler.UpstreamScheduler;
 import com.hanzi.robot.service.SparkAuthService;
+import com.hanzi.robot.utils.HashedTimingWheel;
+import com.hanzi.robot.websocket.ClientMetrics;
+import com.hanzi.robot.websocket.SessionReaper;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.OkHttpClient;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import okhttp3.*;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.context.request.async.DeferredResult;
 
-import java.util.concurrent.CountDownLatch;
+import javax.annotation.PreDestroy;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
 @RestController
@@ -27,12 +42,36 @@ import java.util.concurrent.TimeUnit;
 @CrossOrigin(origins = "*")
 public class ChatController {
 
+    private static final long ANSWER_TIMEOUT_MILLIS = 10_000;
+
     @Autowired
     private SparkAuthService authService;
 
+    @Autowired
+    private SessionReaper sessionReaper;
+
+    @Autowired
+    private ApplicationAvailability applicationAvailability;
+
+    @Autowired
+    private ClientMetrics clientMetrics;
+
+    @Autowired
+    private UpstreamScheduler upstreamScheduler;
+
+    @Autowired
+    private SchedulerConfig schedulerConfig;
+
     private final OkHttpClient okHttpClient;
     private final ObjectMapper objectMapper = new ObjectMapper();
     private final ExecutorService executor = Executors.newCachedThreadPool();
+    // 同步测试接口等待回答的超时
+    private final HashedTimingWheel timingWheel = new HashedTimingWheel(100, TimeUnit.MILLISECONDS, 128,
+            "sync-test-timeout");
+    // 进行中的同步测试调用，停机排空时等待或中断
+    private final Set<SyncCall> activeCalls = ConcurrentHashMap.newKeySet();
+    private final AtomicLong completedCalls = new AtomicLong();
+    private volatile boolean draining;
 
     public ChatController() {
         this.okHttpClient = new OkHttpClient.Builder()
@@ -72,145 +111,344 @@ public class ChatController {
         return ResponseEntity.ok(ChatResponse.success("OK"));
     }
 
+    /**
+     * 就绪检查，启动预热完成之前返回503
+     */
+    @GetMapping("/ready")
+    public ResponseEntity<ChatResponse> ready() {
+        if (applicationAvailability.getReadinessState() != ReadinessState.ACCEPTING_TRAFFIC) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .body(ChatResponse.error(applicationAvailability.getReadinessState().name()));
+        }
+        return ResponseEntity.ok(ChatResponse.success(ReadinessState.ACCEPTING_TRAFFIC.name()));
+    }
+
+    /**
+     * 空闲会话回收统计
+     */
+    @GetMapping("/reaper")
+    public ResponseEntity<ChatResponse> reaper() {
+        return ResponseEntity.ok(ChatResponse.success(sessionReaper.stats()));
+    }
+
+    /**
+     * 上游并发调度统计
+     */
+    @GetMapping("/scheduler")
+    public ResponseEntity<ChatResponse> scheduler() {
+        return ResponseEntity.ok(ChatResponse.success(upstreamScheduler.stats()));
+    }
+
+    /**
+     * 前端上报的首字延迟统计
+     */
+    @GetMapping("/client-metrics")
+    public ResponseEntity<ChatResponse> clientMetrics() {
+        return ResponseEntity.ok(ChatResponse.success(clientMetrics.stats()));
+    }
+
     /**
      * 接收来自用户的问题并返回答案
+     * 排队和等待回答都不占用Tomcat线程，批量请求堆积时不会耗尽 /ws/chat 也在用的线程池
      * @param question 问题
      * @return 答案
      */
     @PostMapping("/sync-test")
-    public ResponseEntity<PostmanTestResponse> syncTest(@RequestBody String question) {
+    public DeferredResult<ResponseEntity<PostmanTestResponse>> syncTest(@RequestBody String question,
+            @RequestHeader(value = "X-Priority", required = false) String priority) {
         PostmanTestResponse response = new PostmanTestResponse();
         response.setRequestId(String.valueOf(System.currentTimeMillis()));
         response.setQuestion(question);
 
-        try {
-            // 1. 生成认证URL
-            String authUrl = authService.generateAuthUrl();
-            response.setAuthUrl(authUrl);
+        if (draining) {
+            // 停机排空中不再接新调用，就绪探针已经摘流，调用方重试会落到其它实例
+            response.setConnectionStatus("DRAINING");
+            response.setErrorMessage("服务正在重启，请稍后重试");
+            response.setTimestamp(System.currentTimeMillis());
+            DeferredResult<ResponseEntity<PostmanTestResponse>> rejected = new DeferredResult<>();
+            rejected.setResult(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(response));
+            return rejected;
+        }
+
+        // 接口调用默认按API类别排队，集成方可以主动降为bulk，但不能升到interactive
+        PriorityClass priorityClass = "bulk".equalsIgnoreCase(priority) ? PriorityClass.BULK : PriorityClass.API;
+        // 兜底超时：排队期限 + 等待回答的时间，正常情况下排队拒绝或回答超时会先触发
+        long timeoutMillis = schedulerConfig.of(priorityClass).getQueueDeadline().toMillis()
+                + ANSWER_TIMEOUT_MILLIS + 5000;
+        DeferredResult<ResponseEntity<PostmanTestResponse>> result = new DeferredResult<>(timeoutMillis);
+        result.onTimeout(() -> {
+            response.setConnectionStatus("TIMEOUT");
+            response.setErrorMessage("等待响应超时");
+            response.setTimestamp(System.currentTimeMillis());
+            result.setResult(ResponseEntity.ok(response));
+        });
 
-            // 2. 使用CountDownLatch等待异步结果
-            CountDownLatch latch = new CountDownLatch(1);
-            StringBuilder fullResponse = new StringBuilder();
+        ChatTrace trace = new ChatTrace("sync-test");
+        trace.queued(priorityClass.name());
+        upstreamScheduler.submit(priorityClass,
+                permit -> new SyncCall(question, response, trace, permit, result).start(),
+                reason -> {
+                    response.setTimestamp(System.currentTimeMillis());
+                    if (reason == UpstreamScheduler.ShedReason.DRAIN) {
+                        trace.failed("停机排空");
+                        response.setConnectionStatus("DRAINING");
+                        response.setErrorMessage("服务正在重启，请稍后重试");
+                        result.setResult(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(response));
+                    } else {
+                        trace.failed("排队超时");
+                        response.setConnectionStatus("SHED");
+                        response.setErrorMessage("上游繁忙，排队超时: " + priorityClass);
+                        result.setResult(ResponseEntity.ok(response));
+                    }
+                });
+        return result;
+    }
 
-            Request request = new Request.Builder()
-                    .url(authUrl)
-                    .build();
+    /**
+     * 进入排空模式，之后的同步测试调用直接返回503
+     */
+    public void startDrain() {
+        draining = true;
+    }
 
-            okHttpClient.newWebSocket(request, new WebSocketListener() {
-                private StringBuilder messageBuffer = new StringBuilder();
-                private boolean completed = false;
+    public int activeSyncCallCount() {
+        return activeCalls.size();
+    }
 
-                @Override
-                public void onOpen(WebSocket webSocket, okhttp3.Response resp) {
-                    response.setConnectionStatus("CONNECTED");
-                    response.setHttpCode(resp.code());
-                    log.info("WebSocket连接成功");
+    /**
+     * 启动以来正常结束（收到status=2）的同步测试调用数
+     */
+    public long completedSyncCallCount() {
+        return completedCalls.get();
+    }
 
-                    // 发送消息到星火API
-                    String sessionId = "user-" + System.currentTimeMillis();
-                    String sparkMessage = authService.buildSparkMessage(question, sessionId);
-                    webSocket.send(sparkMessage);
-                    response.setSentPayload(sparkMessage);
+    /**
+     * 中断所有进行中的同步测试调用，返回中断的数量
+     */
+    public int abortSyncCalls(String error) {
+        int aborted = 0;
+        for (SyncCall call : activeCalls) {
+            if (call.abort(error)) {
+                aborted++;
+            }
+        }
+        return aborted;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        timingWheel.stop();
+    }
+
+    /**
+     * 一次同步测试调用：拿到上游名额后建连提问，结束、出错或超时时先断开上游再归还名额
+     */
+    private class SyncCall extends WebSocketListener {
+        private final String question;
+        private final PostmanTestResponse response;
+        private final ChatTrace trace;
+        private final UpstreamScheduler.Permit permit;
+        private final DeferredResult<ResponseEntity<PostmanTestResponse>> result;
+        private final StringBuilder messageBuffer = new StringBuilder();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile WebSocket webSocket;
+        private volatile HashedTimingWheel.Timeout timeout;
+
+        private SyncCall(String question, PostmanTestResponse response, ChatTrace trace,
+                         UpstreamScheduler.Permit permit, DeferredResult<ResponseEntity<PostmanTestResponse>> result) {
+            this.question = question;
+            this.response = response;
+            this.trace = trace;
+            this.permit = permit;
+            this.result = result;
+        }
+
+        /**
+         * 在放行线程上执行，不能阻塞
+         */
+        private void start() {
+            trace.admitted();
+            if (result.isSetOrExpired()) {
+                // 排队期间请求已经超时返回
+                trace.failed("排队中已超时返回");
+                permit.release();
+                return;
+            }
+            activeCalls.add(this);
+            try {
+                // 1. 生成认证URL
+                trace.authStarted();
+                String authUrl = authService.generateAuthUrl();
+                trace.authFinished();
+                response.setAuthUrl(authUrl);
+
+                Request request = new Request.Builder()
+                        .url(authUrl)
+                        .build();
+
+                // 2. 异步建连，最多等待10秒
+                timeout = timingWheel.newTimeout(this::onTimeout, ANSWER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                trace.connectStarted();
+                webSocket = okHttpClient.newWebSocket(request, this);
+                if (finished.get()) {
+                    webSocket.cancel();
                 }
+            } catch (Exception e) {
+                log.error("运行过程异常", e);
+                trace.failed(e.getMessage());
+                finish(true, () -> {
+                    response.setConnectionStatus("ERROR");
+                    response.setErrorMessage("运行过程异常: " + e.getMessage());
+                });
+            }
+        }
 
-                @Override
-                public void onMessage(WebSocket webSocket, String text) {
-                    try {
-                        JsonNode jsonNode = objectMapper.readTree(text);
-                        JsonNode header = jsonNode.get("header");
-
-                        if (header != null) {
-                            int code = header.path("code").asInt();
-                            if (code != 0) {
-                                response.setErrorCode(code);
-                                response.setErrorMessage(header.path("message").asText());
-                                latch.countDown();
-                                return;
-                            }
+        @Override
+        public void onOpen(WebSocket webSocket, okhttp3.Response resp) {
+            trace.connected();
+            response.setConnectionStatus("CONNECTED");
+            response.setHttpCode(resp.code());
+            log.info("WebSocket连接成功");
 
-                            // 获取消息内容
-                            JsonNode payload = jsonNode.get("payload");
-                            if (payload != null && payload.has("choices")) {
-                                JsonNode textNode = payload.get("choices").get("text");
-                                if (textNode != null && textNode.isArray() && textNode.size() > 0) {
-                                    String content = textNode.get(0).path("content").asText();
-                                    if (content != null && !content.isEmpty()) {
-                                        messageBuffer.append(content);
-                                        fullResponse.append(content);
-                                    }
-                                }
-                            }
+            // 发送消息到星火API
+            String sessionId = "user-" + System.currentTimeMillis();
+            String sparkMessage = authService.buildSparkMessage(question, sessionId);
+            webSocket.send(sparkMessage);
+            trace.questionSent();
+            response.setSentPayload(sparkMessage);
+        }
+
+        @Override
+        public void onMessage(WebSocket webSocket, String text) {
+            if (finished.get()) {
+                return;
+            }
+            try {
+                JsonNode jsonNode = objectMapper.readTree(text);
+                JsonNode header = jsonNode.get("header");
+
+                if (header != null) {
+                    int code = header.path("code").asInt();
+                    if (code != 0) {
+                        trace.failed("星火API返回错误: " + code);
+                        finish(true, () -> {
+                            response.setErrorCode(code);
+                            response.setErrorMessage(header.path("message").asText());
+                        });
+                        return;
+                    }
 
-                            // 检查是否结束
-                            int status = header.path("status").asInt(0);
-                            if (status == 2) {
-                                completed = true;
-                                response.setFullResponse(messageBuffer.toString());
-                                response.setConnectionStatus("COMPLETED");
-                                response.setMessageCount(response.getMessageCount() + 1);
-                                latch.countDown();
-                                webSocket.close(1000, "正常完成");
-                            } else {
-                                response.setMessageCount(response.getMessageCount() + 1);
+                    // 获取消息内容
+                    JsonNode payload = jsonNode.get("payload");
+                    if (payload != null && payload.has("choices")) {
+                        JsonNode textNode = payload.get("choices").get("text");
+                        if (textNode != null && textNode.isArray() && textNode.size() > 0) {
+                            String content = textNode.get(0).path("content").asText();
+                            if (content != null && !content.isEmpty()) {
+                                messageBuffer.append(content);
+                                trace.tokenReceived(content.length());
                             }
                         }
-                    } catch (Exception e) {
-                        log.error("解析消息失败", e);
-                        response.setErrorMessage("解析响应失败: " + e.getMessage());
-                        latch.countDown();
                     }
-                }
-
-                @Override
-                public void onClosing(WebSocket webSocket, int code, String reason) {
-                    log.info("连接关闭中: code={}, reason={}", code, reason);
-                }
 
-                @Override
-                public void onClosed(WebSocket webSocket, int code, String reason) {
-                    log.info("连接已关闭");
-                    if (!completed) {
-                        response.setConnectionStatus("CLOSED_UNEXPECTEDLY");
-                        latch.countDown();
+                    response.setMessageCount(response.getMessageCount() + 1);
+                    // 检查是否结束
+                    int status = header.path("status").asInt(0);
+                    if (status == 2) {
+                        webSocket.close(1000, "正常完成");
+                        trace.completed();
+                        completedCalls.incrementAndGet();
+                        finish(false, () -> {
+                            response.setFullResponse(messageBuffer.toString());
+                            response.setConnectionStatus("COMPLETED");
+                        });
                     }
                 }
+            } catch (Exception e) {
+                log.error("解析消息失败", e);
+                trace.failed("解析响应失败: " + e.getMessage());
+                finish(true, () -> response.setErrorMessage("解析响应失败: " + e.getMessage()));
+            }
+        }
 
-                @Override
-                public void onFailure(WebSocket webSocket, Throwable t, okhttp3.Response resp) {
-                    log.error("连接失败", t);
-                    response.setConnectionStatus("FAILED");
-                    response.setErrorMessage(t.getMessage());
-
-                    if (resp != null) {
-                        response.setHttpCode(resp.code());
-                        try {
-                            response.setErrorResponse(resp.body() != null ?
-                                    resp.body().string() : "null");
-                        } catch (Exception e) {
-                            log.error("读取错误响应失败", e);
-                        }
-                    }
-                    latch.countDown();
+        @Override
+        public void onClosing(WebSocket webSocket, int code, String reason) {
+            log.info("连接关闭中: code={}, reason={}", code, reason);
+        }
+
+        @Override
+        public void onClosed(WebSocket webSocket, int code, String reason) {
+            log.info("连接已关闭");
+            trace.failed("连接在回答结束前关闭: " + code);
+            finish(false, () -> response.setConnectionStatus("CLOSED_UNEXPECTEDLY"));
+        }
+
+        @Override
+        public void onFailure(WebSocket webSocket, Throwable t, okhttp3.Response resp) {
+            if (finished.get()) {
+                // 超时或出错后主动cancel也会走到这里
+                return;
+            }
+            log.error("连接失败", t);
+            trace.failed(t.getMessage());
+            String errorResponse = null;
+            if (resp != null) {
+                try {
+                    errorResponse = resp.body() != null ? resp.body().string() : "null";
+                } catch (Exception e) {
+                    log.error("读取错误响应失败", e);
+                }
+            }
+            String body = errorResponse;
+            finish(false, () -> {
+                response.setConnectionStatus("FAILED");
+                response.setErrorMessage(t.getMessage());
+                if (resp != null) {
+                    response.setHttpCode(resp.code());
+                    response.setErrorResponse(body);
                 }
             });
+        }
 
-            // 3. 等待最多10秒
-            boolean completed = latch.await(10, TimeUnit.SECONDS);
-            if (!completed) {
+        private void onTimeout() {
+            trace.failed("等待响应超时");
+            finish(true, () -> {
                 response.setConnectionStatus("TIMEOUT");
                 response.setErrorMessage("等待响应超时（10秒）");
-                response.setPartialResponse(fullResponse.toString());
-            }
+                response.setPartialResponse(messageBuffer.toString());
+            });
+        }
 
-            response.setTimestamp(System.currentTimeMillis());
-            return ResponseEntity.ok(response);
+        private boolean abort(String error) {
+            trace.failed("停机中断");
+            return finish(true, () -> {
+                response.setConnectionStatus("ABORTED");
+                response.setErrorMessage(error);
+                response.setPartialResponse(messageBuffer.toString());
+            });
+        }
 
-        } catch (Exception e) {
-            log.error("运行过程异常", e);
-            response.setConnectionStatus("ERROR");
-            response.setErrorMessage("运行过程异常: " + e.getMessage());
+        /**
+         * 只有第一次结束生效：需要时先断开上游，再归还名额、返回结果
+         */
+        private boolean finish(boolean cancel, Runnable fill) {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            activeCalls.remove(this);
+            fill.run();
+            HashedTimingWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+            WebSocket socket = webSocket;
+            if (cancel && socket != null) {
+                socket.cancel();
+            }
+            permit.release();
             response.setTimestamp(System.currentTimeMillis());
-            return ResponseEntity.ok(response);
+            result.setResult(ResponseEntity.ok(response));
+            return true;
         }
     }
-}
\ No newline at end of file
+}
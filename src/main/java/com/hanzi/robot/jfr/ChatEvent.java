@@ -0,0 +1,20 @@
+package com.hanzi.robot.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * 聊天链路JFR事件基类，携带请求和会话标识
+ */
+@Category({"Robot", "Chat"})
+@StackTrace(false)
+public abstract class ChatEvent extends Event {
+
+    @Label("Request Id")
+    String requestId;
+
+    @Label("Session Id")
+    String sessionId;
+}
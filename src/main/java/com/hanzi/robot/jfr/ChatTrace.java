@@ -0,0 +1,153 @@
+package com.hanzi.robot.jfr;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一次聊天请求的JFR埋点
+ * 按阶段（queue -> auth -> connect -> first-token -> stream）提交事件
+ * 每个事件创建后先检查isEnabled()，没有录制时不保留、不begin，事件对象不逃逸，JIT可以直接消除分配
+ */
+public class ChatTrace {
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final String requestId;
+    private final String sessionId;
+    // 完成/失败事件都从收到问题起计时，结束时只提交其中一个
+    private final SparkCompleteEvent completeEvent;
+    private final SparkErrorEvent errorEvent;
+
+    private String stage = "queue";
+    private SparkQueueEvent queueEvent;
+    private SparkAuthEvent authEvent;
+    private SparkConnectEvent connectEvent;
+    private SparkFirstTokenEvent firstTokenEvent;
+    private int frames;
+    private int characters;
+    // 完成和失败可能分别来自星火回调、回收、排空线程，只提交先到的一个
+    private boolean finished;
+
+    public ChatTrace(String sessionId) {
+        this.sessionId = sessionId;
+        this.requestId = sessionId + "-" + SEQUENCE.incrementAndGet();
+        this.completeEvent = start(new SparkCompleteEvent());
+        this.errorEvent = start(new SparkErrorEvent());
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * 开始排队等待上游名额
+     */
+    public void queued(String priorityClass) {
+        queueEvent = start(new SparkQueueEvent());
+        if (queueEvent != null) {
+            queueEvent.priorityClass = priorityClass;
+        }
+    }
+
+    public void admitted() {
+        commit(queueEvent);
+        queueEvent = null;
+    }
+
+    public void authStarted() {
+        stage = "auth";
+        authEvent = start(new SparkAuthEvent());
+    }
+
+    public void authFinished() {
+        commit(authEvent);
+        authEvent = null;
+    }
+
+    public void connectStarted() {
+        stage = "connect";
+        connectEvent = start(new SparkConnectEvent());
+    }
+
+    public void connected() {
+        commit(connectEvent);
+        connectEvent = null;
+    }
+
+    /**
+     * 问题已发送给星火，开始计算首字延迟
+     */
+    public void questionSent() {
+        stage = "first-token";
+        firstTokenEvent = start(new SparkFirstTokenEvent());
+    }
+
+    /**
+     * 收到一帧回答内容
+     */
+    public void tokenReceived(int length) {
+        frames++;
+        characters += length;
+        if (!"stream".equals(stage)) {
+            commit(firstTokenEvent);
+            firstTokenEvent = null;
+            stage = "stream";
+        }
+    }
+
+    /**
+     * 开始推送一帧给前端，没有录制时返回null
+     */
+    public SparkFlushEvent flushStarted(int length, boolean complete) {
+        SparkFlushEvent event = start(new SparkFlushEvent());
+        if (event != null) {
+            event.characters = length;
+            event.complete = complete;
+        }
+        return event;
+    }
+
+    public void flushFinished(SparkFlushEvent event) {
+        commit(event);
+    }
+
+    public synchronized void completed() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (completeEvent != null) {
+            completeEvent.frames = frames;
+            completeEvent.characters = characters;
+            commit(completeEvent);
+        }
+    }
+
+    public synchronized void failed(String message) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (errorEvent != null) {
+            errorEvent.stage = stage;
+            errorEvent.message = message;
+            commit(errorEvent);
+        }
+    }
+
+    private <T extends ChatEvent> T start(T event) {
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.requestId = requestId;
+        event.sessionId = sessionId;
+        event.begin();
+        return event;
+    }
+
+    private void commit(ChatEvent event) {
+        if (event != null) {
+            event.end();
+            event.commit();
+        }
+    }
+}
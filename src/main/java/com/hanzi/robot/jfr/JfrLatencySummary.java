@@ -0,0 +1,123 @@
+package com.hanzi.robot.jfr;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JFR录制文件的聊天链路耗时汇总工具
+ * 用法: java -cp robot.jar com.hanzi.robot.jfr.JfrLatencySummary recording.jfr [最慢请求数]
+ */
+public class JfrLatencySummary {
+
+    private static final String EVENT_PREFIX = "com.hanzi.robot.";
+    private static final String[] STAGES = {"SparkQueue", "SparkAuth", "SparkConnect", "SparkFirstToken",
+            "SparkFlush", "SparkComplete", "SparkError"};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("用法: JfrLatencySummary <recording.jfr> [最慢请求数, 默认10]");
+            System.exit(1);
+        }
+        int top = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        Map<String, List<Duration>> stageDurations = new LinkedHashMap<>();
+        for (String stage : STAGES) {
+            stageDurations.put(stage, new ArrayList<>());
+        }
+        Map<String, Map<String, Duration>> requests = new LinkedHashMap<>();
+
+        Path path = Paths.get(args[0]);
+        try (RecordingFile recordingFile = new RecordingFile(path)) {
+            while (recordingFile.hasMoreEvents()) {
+                RecordedEvent event = recordingFile.readEvent();
+                String name = event.getEventType().getName();
+                if (!name.startsWith(EVENT_PREFIX)) {
+                    continue;
+                }
+                String stage = name.substring(EVENT_PREFIX.length());
+                List<Duration> durations = stageDurations.get(stage);
+                if (durations == null) {
+                    continue;
+                }
+                durations.add(event.getDuration());
+                // 同一请求的多次推送累加
+                requests.computeIfAbsent(event.getString("requestId"), k -> new LinkedHashMap<>())
+                        .merge(stage, event.getDuration(), Duration::plus);
+            }
+        }
+
+        System.out.printf("%-16s %8s %10s %10s %10s %10s %10s%n",
+                "stage", "count", "avg(ms)", "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)");
+        for (Map.Entry<String, List<Duration>> entry : stageDurations.entrySet()) {
+            List<Duration> durations = entry.getValue();
+            if (durations.isEmpty()) {
+                continue;
+            }
+            Collections.sort(durations);
+            long totalNanos = 0;
+            for (Duration duration : durations) {
+                totalNanos += duration.toNanos();
+            }
+            System.out.printf("%-16s %8d %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+                    entry.getKey(),
+                    durations.size(),
+                    totalNanos / 1e6 / durations.size(),
+                    millis(percentile(durations, 0.50)),
+                    millis(percentile(durations, 0.90)),
+                    millis(percentile(durations, 0.99)),
+                    millis(durations.get(durations.size() - 1)));
+        }
+
+        List<Map.Entry<String, Map<String, Duration>>> slowest = new ArrayList<>(requests.entrySet());
+        slowest.sort(Comparator.comparing((Map.Entry<String, Map<String, Duration>> e) -> total(e.getValue()))
+                .reversed());
+        if (slowest.isEmpty()) {
+            return;
+        }
+
+        System.out.println();
+        System.out.printf("最慢的%d个请求 (ms):%n", Math.min(top, slowest.size()));
+        System.out.printf("%-40s %10s %10s %10s %10s %10s %10s %8s%n",
+                "requestId", "queue", "auth", "connect", "firstTok", "flush", "total", "result");
+        for (Map.Entry<String, Map<String, Duration>> entry : slowest.subList(0, Math.min(top, slowest.size()))) {
+            Map<String, Duration> stages = entry.getValue();
+            System.out.printf("%-40s %10.2f %10.2f %10.2f %10.2f %10.2f %10.2f %8s%n",
+                    entry.getKey(),
+                    millis(stages.get("SparkQueue")),
+                    millis(stages.get("SparkAuth")),
+                    millis(stages.get("SparkConnect")),
+                    millis(stages.get("SparkFirstToken")),
+                    millis(stages.get("SparkFlush")),
+                    millis(total(stages)),
+                    stages.containsKey("SparkError") ? "error" : stages.containsKey("SparkComplete") ? "ok" : "-");
+        }
+    }
+
+    private static Duration total(Map<String, Duration> stages) {
+        Duration total = stages.get("SparkComplete");
+        if (total == null) {
+            total = stages.get("SparkError");
+        }
+        return total != null ? total : Duration.ZERO;
+    }
+
+    private static Duration percentile(List<Duration> sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    private static double millis(Duration duration) {
+        return duration == null ? 0 : duration.toNanos() / 1e6;
+    }
+}
@@ -0,0 +1,11 @@
+package com.hanzi.robot.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.hanzi.robot.SparkAuth")
+@Label("Spark Auth")
+@Description("生成星火鉴权URL（HMAC签名）")
+public class SparkAuthEvent extends ChatEvent {
+}
@@ -0,0 +1,17 @@
+package com.hanzi.robot.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.hanzi.robot.SparkComplete")
+@Label("Spark Complete")
+@Description("一次回答从收到问题到完整结束")
+public class SparkCompleteEvent extends ChatEvent {
+
+    @Label("Frames")
+    int frames;
+
+    @Label("Characters")
+    int characters;
+}
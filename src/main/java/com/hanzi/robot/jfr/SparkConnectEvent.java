@@ -0,0 +1,11 @@
+package com.hanzi.robot.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.hanzi.robot.SparkConnect")
+@Label("Spark Connect")
+@Description("与星火API建立WebSocket连接（TCP/TLS/Upgrade）")
+public class SparkConnectEvent extends ChatEvent {
+}
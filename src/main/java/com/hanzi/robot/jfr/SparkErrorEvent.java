@@ -0,0 +1,17 @@
+package com.hanzi.robot.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.hanzi.robot.SparkError")
+@Label("Spark Error")
+@Description("一次回答从收到问题到失败")
+public class SparkErrorEvent extends ChatEvent {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Message")
+    String message;
+}
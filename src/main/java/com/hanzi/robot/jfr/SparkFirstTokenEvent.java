@@ -0,0 +1,11 @@
+package com.hanzi.robot.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.hanzi.robot.SparkFirstToken")
+@Label("Spark First Token")
+@Description("发送问题到收到星火第一帧内容")
+public class SparkFirstTokenEvent extends ChatEvent {
+}
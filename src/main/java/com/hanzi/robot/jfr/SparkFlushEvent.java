@@ -0,0 +1,17 @@
+package com.hanzi.robot.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.hanzi.robot.SparkFlush")
+@Label("Spark Flush")
+@Description("推送一帧内容给前端用户")
+public class SparkFlushEvent extends ChatEvent {
+
+    @Label("Characters")
+    int characters;
+
+    @Label("Complete")
+    boolean complete;
+}
@@ -0,0 +1,14 @@
+package com.hanzi.robot.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("com.hanzi.robot.SparkQueue")
+@Label("Spark Queue")
+@Description("等待上游并发名额")
+public class SparkQueueEvent extends ChatEvent {
+
+    @Label("Priority Class")
+    String priorityClass;
+}
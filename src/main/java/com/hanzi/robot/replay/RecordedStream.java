@@ -0,0 +1,86 @@
+package com.hanzi.robot.replay;
+
+import lombok.Data;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 一次录制下来的星火回答流
+ * 文件格式（gzip压缩）: magic(4) version(1) question, 之后每帧为 间隔微秒(varint) 内容；字符串均为 长度(varint) + UTF-8
+ */
+@Data
+public class RecordedStream {
+
+    static final int MAGIC = 0x5350524B; // "SPRK"
+    static final int VERSION = 1;
+
+    private String question;
+    private List<Frame> frames = new ArrayList<>();
+
+    @Data
+    public static class Frame {
+        /** 距上一帧（第一帧为距发送问题）的间隔 */
+        private final long delayMicros;
+        private final String text;
+    }
+
+    /**
+     * 读取录制文件，文件尾部不完整（录制进程被杀）时保留已读到的帧
+     */
+    public static RecordedStream read(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path);
+             DataInputStream data = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)))) {
+            if (data.readInt() != MAGIC) {
+                throw new IOException("不是星火回答录制文件: " + path);
+            }
+            int version = data.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("不支持的录制文件版本: " + version);
+            }
+            RecordedStream stream = new RecordedStream();
+            stream.setQuestion(readString(data));
+            while (true) {
+                long delayMicros;
+                try {
+                    delayMicros = readVarLong(data);
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    stream.getFrames().add(new Frame(delayMicros, readString(data)));
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+            return stream;
+        }
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(data)];
+        data.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarLong(DataInputStream data) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = data.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("varint过长");
+    }
+}
@@ -0,0 +1,20 @@
+package com.hanzi.robot.replay;
+
+import lombok.Data;
+
+@Data
+public class ReplayReport {
+    private String file;
+    private Boolean realTime;
+    private Integer frames;
+    // 推送给前端的消息数和字符数
+    private Integer messagesSent;
+    private Long charactersSent;
+    // 录制时的原始耗时和本次回放耗时
+    private Double recordedMillis;
+    private Double elapsedMillis;
+    private Double framesPerSecond;
+    // 回放线程上的分配量，JVM不支持时为-1
+    private Long allocatedBytes;
+    private Long allocatedBytesPerFrame;
+}
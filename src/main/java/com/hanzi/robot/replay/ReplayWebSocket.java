@@ -0,0 +1,42 @@
+package com.hanzi.robot.replay;
+
+import okhttp3.Request;
+import okhttp3.WebSocket;
+import okio.ByteString;
+
+/**
+ * 回放时代替星火上游连接，所有发送都直接丢弃
+ */
+class ReplayWebSocket implements WebSocket {
+
+    private final Request request = new Request.Builder().url("http://replay.invalid/").build();
+
+    @Override
+    public Request request() {
+        return request;
+    }
+
+    @Override
+    public long queueSize() {
+        return 0;
+    }
+
+    @Override
+    public boolean send(String text) {
+        return true;
+    }
+
+    @Override
+    public boolean send(ByteString bytes) {
+        return true;
+    }
+
+    @Override
+    public boolean close(int code, String reason) {
+        return true;
+    }
+
+    @Override
+    public void cancel() {
+    }
+}
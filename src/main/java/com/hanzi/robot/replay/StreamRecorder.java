@@ -0,0 +1,40 @@
+package com.hanzi.robot.replay;
+
+import com.hanzi.robot.config.RecorderConfig;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * 星火上游回答录制，开启后每次回答生成一个录制文件，供 {@link StreamReplayer} 回放
+ */
+@Slf4j
+@Component
+public class StreamRecorder {
+
+    @Autowired
+    private RecorderConfig recorderConfig;
+
+    /**
+     * 开始录制一次回答，未开启录制或创建文件失败时返回null
+     */
+    public StreamRecordingWriter start(String requestId, String question) {
+        if (!Boolean.TRUE.equals(recorderConfig.getEnabled())) {
+            return null;
+        }
+        try {
+            Path directory = Paths.get(recorderConfig.getDirectory());
+            Files.createDirectories(directory);
+            Path file = directory.resolve(requestId.replaceAll("[^A-Za-z0-9_-]", "_") + ".sprk");
+            return new StreamRecordingWriter(file, question);
+        } catch (IOException e) {
+            log.warn("创建回答录制文件失败, request: {}", requestId, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.hanzi.robot.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 星火回答录制文件写入器，格式见 {@link RecordedStream}
+ * 只在单个上游连接的回调线程上使用，非线程安全
+ */
+public class StreamRecordingWriter implements Closeable {
+
+    private final DataOutputStream out;
+    private long lastFrameTime;
+
+    public StreamRecordingWriter(Path path, String question) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(path))));
+        out.writeInt(RecordedStream.MAGIC);
+        out.writeByte(RecordedStream.VERSION);
+        writeString(question);
+        this.lastFrameTime = System.nanoTime();
+    }
+
+    /**
+     * 记录一帧原始报文及距上一帧的间隔
+     */
+    public void frame(String text) throws IOException {
+        long now = System.nanoTime();
+        writeVarLong(TimeUnit.NANOSECONDS.toMicros(now - lastFrameTime));
+        writeString(text);
+        lastFrameTime = now;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
@@ -0,0 +1,119 @@
+package com.hanzi.robot.replay;
+
+import com.hanzi.robot.jfr.ChatTrace;
+import com.hanzi.robot.websocket.SparkWebSocketClient;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 星火回答回放
+ * 把录制的上游帧按原始节奏或全速喂给 {@link SparkWebSocketClient} 的帧监听器，走完整的解析、缓冲、推送链路，不需要网络
+ */
+@Slf4j
+@Component
+public class StreamReplayer {
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    @Autowired
+    private SparkWebSocketClient sparkClient;
+
+    /**
+     * 回放目录下所有录制文件
+     */
+    public List<ReplayReport> replayAll(Path directory, boolean realTime) throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream.filter(p -> p.toString().endsWith(".sprk")).sorted().collect(Collectors.toList());
+        }
+        List<ReplayReport> reports = new ArrayList<>();
+        for (Path file : files) {
+            reports.add(replay(file, realTime));
+        }
+        return reports;
+    }
+
+    /**
+     * 回放单个录制文件
+     *
+     * @param realTime true按录制时的帧间隔回放，false全速回放
+     */
+    public ReplayReport replay(Path file, boolean realTime) throws IOException {
+        RecordedStream stream = RecordedStream.read(file);
+        String sessionId = "replay-" + SEQUENCE.incrementAndGet();
+        ReplayUserSession userSession = new ReplayUserSession(sessionId);
+        WebSocket webSocket = new ReplayWebSocket();
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long due = start;
+        long recordedMicros = 0;
+
+        WebSocketListener listener = sparkClient.openStream(sessionId, userSession, stream.getQuestion(),
+                new ChatTrace(sessionId));
+        for (RecordedStream.Frame frame : stream.getFrames()) {
+            recordedMicros += frame.getDelayMicros();
+            if (realTime) {
+                due += TimeUnit.MICROSECONDS.toNanos(frame.getDelayMicros());
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            listener.onMessage(webSocket, frame.getText());
+        }
+        listener.onClosed(webSocket, 1000, "回放结束");
+
+        long elapsedNanos = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+        int frames = stream.getFrames().size();
+
+        ReplayReport report = new ReplayReport();
+        report.setFile(file.getFileName().toString());
+        report.setRealTime(realTime);
+        report.setFrames(frames);
+        report.setMessagesSent(userSession.getMessagesSent());
+        report.setCharactersSent(userSession.getCharactersSent());
+        report.setRecordedMillis(recordedMicros / 1e3);
+        report.setElapsedMillis(elapsedNanos / 1e6);
+        report.setFramesPerSecond(elapsedNanos > 0 ? frames * 1e9 / elapsedNanos : 0);
+        if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+            report.setAllocatedBytes(allocatedAfter - allocatedBefore);
+            report.setAllocatedBytesPerFrame(frames > 0 ? (allocatedAfter - allocatedBefore) / frames : 0);
+        } else {
+            report.setAllocatedBytes(-1L);
+            report.setAllocatedBytesPerFrame(-1L);
+        }
+        log.info("回放完成: {}", report);
+        return report;
+    }
+
+    /**
+     * 当前线程累计分配的字节数，JVM不支持时返回-1
+     */
+    private long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+            if (threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled()) {
+                return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,13 @@
+package com.hanzi.robot.scheduler;
+
+/**
+ * 上游请求的优先级类别
+ */
+public enum PriorityClass {
+    /** 前端 /ws/chat 实时聊天 */
+    INTERACTIVE,
+    /** /chat/sync-test 等接口调用 */
+    API,
+    /** 批量/后台任务 */
+    BULK
+}
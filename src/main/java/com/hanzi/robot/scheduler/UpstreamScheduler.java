@@ -0,0 +1,326 @@
+package com.hanzi.robot.scheduler;
+
+import com.hanzi.robot.config.SchedulerConfig;
+import com.hanzi.robot.utils.HashedTimingWheel;
+import com.hanzi.robot.utils.LatencyWindow;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 星火上游并发调度
+ * 同时进行的上游请求数有上限，超出的请求按优先级类别排队；名额空出时在各类别之间做加权公平排队（自时钟WFQ），
+ * 接口/批量类别各自有并发上限，总名额里始终给实时聊天留出余量，接口/批量流量再大也不会让聊天排队等名额；
+ * 排队超过本类别期限的请求直接拒绝
+ */
+@Slf4j
+@Component
+public class UpstreamScheduler {
+
+    public enum ShedReason {
+        /** 排队超过本类别期限 */
+        DEADLINE,
+        /** 停机排空，排队中的请求全部拒绝 */
+        DRAIN
+    }
+
+    private static final int WAIT_WINDOW = 1024;
+
+    private final SchedulerConfig schedulerConfig;
+    private final Map<PriorityClass, ClassState> states = new EnumMap<>(PriorityClass.class);
+    private final Object lock = new Object();
+
+    private HashedTimingWheel timingWheel;
+    private ExecutorService shedExecutor;
+    private int inFlight;
+    private int queued;
+    // 最近一次放行请求的虚拟完成时间
+    private double virtualTime;
+
+    public UpstreamScheduler(SchedulerConfig schedulerConfig) {
+        this.schedulerConfig = schedulerConfig;
+        for (PriorityClass priorityClass : PriorityClass.values()) {
+            states.put(priorityClass, new ClassState());
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        timingWheel = new HashedTimingWheel(10, TimeUnit.MILLISECONDS, 512, "upstream-scheduler");
+        timingWheel.start();
+        shedExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "upstream-scheduler-shed");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 申请一个上游名额
+     * 拿到名额时在当前线程或释放名额的线程上调用onAdmit，使用完必须调用 {@link Permit#release()}，onAdmit不能阻塞；
+     * 被拒绝时在单独的拒绝线程上调用onShed
+     */
+    public void submit(PriorityClass priorityClass, Consumer<Permit> onAdmit, Consumer<ShedReason> onShed) {
+        ClassState state = states.get(priorityClass);
+        Ticket ticket = new Ticket(priorityClass, onAdmit, onShed);
+        List<Ticket> admitted;
+        boolean waiting;
+        synchronized (lock) {
+            // 虚拟完成时间 = max(当前虚拟时间, 本类别上一个请求的完成时间) + 1/权重
+            ticket.finishTag = Math.max(virtualTime, state.lastFinishTag)
+                    + 1.0 / schedulerConfig.of(priorityClass).getWeight();
+            state.lastFinishTag = ticket.finishTag;
+            state.queue.add(ticket);
+            state.queued++;
+            queued++;
+            // 有空闲名额时立即放行；其它类别因为并发上限积压时，不影响本类别直接拿名额
+            admitted = dispatchLocked();
+            waiting = ticket.status == Status.QUEUED;
+        }
+        admitted.forEach(this::admit);
+        // 期限挂上之前就被其它线程放行时，到期回调发现状态不是QUEUED会直接忽略
+        if (waiting) {
+            ticket.deadline = timingWheel.newTimeout(() -> shed(ticket, ShedReason.DEADLINE),
+                    schedulerConfig.of(priorityClass).getQueueDeadline().toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 拒绝所有排队中的请求，返回拒绝的数量（停机排空时使用）
+     */
+    public int shedAll() {
+        List<Ticket> shed = new ArrayList<>();
+        synchronized (lock) {
+            for (ClassState state : states.values()) {
+                Ticket ticket;
+                while ((ticket = state.queue.poll()) != null) {
+                    if (shedLocked(ticket)) {
+                        shed.add(ticket);
+                    }
+                }
+            }
+        }
+        shed.forEach(ticket -> notifyShed(ticket, ShedReason.DRAIN));
+        return shed.size();
+    }
+
+    /**
+     * 各类别的排队、放行、拒绝和排队耗时统计
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (lock) {
+            stats.put("maxConcurrentStreams", schedulerConfig.getMaxConcurrentStreams());
+            stats.put("inFlight", inFlight);
+            stats.put("queued", queued);
+            for (Map.Entry<PriorityClass, ClassState> entry : states.entrySet()) {
+                SchedulerConfig.ClassConfig classConfig = schedulerConfig.of(entry.getKey());
+                ClassState state = entry.getValue();
+                Map<String, Object> classStats = new LinkedHashMap<>();
+                classStats.put("weight", classConfig.getWeight());
+                classStats.put("queueDeadlineMillis", classConfig.getQueueDeadline().toMillis());
+                classStats.put("maxInFlight", classConfig.getMaxInFlight());
+                classStats.put("inFlight", state.inFlight);
+                classStats.put("queued", state.queued);
+                classStats.put("admitted", state.admitted);
+                classStats.put("shed", state.shed);
+                classStats.put("queueWaitMillis", state.waitMillis.percentiles());
+                stats.put(entry.getKey().name().toLowerCase(), classStats);
+            }
+        }
+        return stats;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (timingWheel != null) {
+            timingWheel.stop();
+        }
+        if (shedExecutor != null) {
+            shedExecutor.shutdown();
+        }
+        log.info("上游调度统计: {}", stats());
+    }
+
+    private void release(PriorityClass priorityClass) {
+        List<Ticket> admitted;
+        synchronized (lock) {
+            inFlight--;
+            states.get(priorityClass).inFlight--;
+            admitted = dispatchLocked();
+        }
+        admitted.forEach(this::admit);
+    }
+
+    /**
+     * 按虚拟完成时间从小到大放行，直到名额用完或没有可放行的请求，已达到本类别并发上限的类别跳过
+     */
+    private List<Ticket> dispatchLocked() {
+        List<Ticket> admitted = Collections.emptyList();
+        while (inFlight < schedulerConfig.getMaxConcurrentStreams() && queued > 0) {
+            ClassState next = null;
+            for (Map.Entry<PriorityClass, ClassState> entry : states.entrySet()) {
+                ClassState state = entry.getValue();
+                Ticket head;
+                // 已被拒绝的请求在这里顺带出队
+                while ((head = state.queue.peek()) != null && head.status != Status.QUEUED) {
+                    state.queue.poll();
+                }
+                Integer maxInFlight = schedulerConfig.of(entry.getKey()).getMaxInFlight();
+                if (head == null || (maxInFlight != null && state.inFlight >= maxInFlight)) {
+                    continue;
+                }
+                if (next == null || head.finishTag < next.queue.peek().finishTag) {
+                    next = state;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            Ticket ticket = next.queue.poll();
+            next.queued--;
+            queued--;
+            virtualTime = ticket.finishTag;
+            admitLocked(ticket);
+            if (admitted.isEmpty()) {
+                admitted = new ArrayList<>();
+            }
+            admitted.add(ticket);
+        }
+        return admitted;
+    }
+
+    private void admitLocked(Ticket ticket) {
+        ClassState state = states.get(ticket.priorityClass);
+        ticket.status = Status.ADMITTED;
+        inFlight++;
+        state.inFlight++;
+        state.admitted++;
+    }
+
+    private void admit(Ticket ticket) {
+        HashedTimingWheel.Timeout deadline = ticket.deadline;
+        if (deadline != null) {
+            deadline.cancel();
+        }
+        states.get(ticket.priorityClass).waitMillis.record(
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ticket.enqueuedAt));
+        Permit permit = new Permit(ticket.priorityClass);
+        try {
+            ticket.onAdmit.accept(permit);
+        } catch (Exception e) {
+            log.error("上游请求放行后执行失败, 类别: {}", ticket.priorityClass, e);
+            permit.release();
+        }
+    }
+
+    private void shed(Ticket ticket, ShedReason reason) {
+        boolean shed;
+        synchronized (lock) {
+            shed = shedLocked(ticket);
+        }
+        if (shed) {
+            notifyShed(ticket, reason);
+        }
+    }
+
+    private boolean shedLocked(Ticket ticket) {
+        if (ticket.status != Status.QUEUED) {
+            return false;
+        }
+        ClassState state = states.get(ticket.priorityClass);
+        ticket.status = Status.SHED;
+        state.queued--;
+        state.shed++;
+        queued--;
+        if (state.queued == 0) {
+            // 被拒绝的请求不应继续占用本类别的虚拟时间
+            state.lastFinishTag = virtualTime;
+        }
+        return true;
+    }
+
+    /**
+     * 拒绝回调会给用户发消息，有网络IO，不能占用时间轮线程，交给单独的拒绝线程执行
+     */
+    private void notifyShed(Ticket ticket, ShedReason reason) {
+        HashedTimingWheel.Timeout deadline = ticket.deadline;
+        if (deadline != null) {
+            deadline.cancel();
+        }
+        log.warn("上游请求被拒绝, 类别: {}, 原因: {}", ticket.priorityClass, reason);
+        shedExecutor.execute(() -> {
+            try {
+                ticket.onShed.accept(reason);
+            } catch (Exception e) {
+                log.error("处理被拒绝的上游请求失败, 类别: {}", ticket.priorityClass, e);
+            }
+        });
+    }
+
+    /**
+     * 上游名额，重复释放只生效一次
+     */
+    public final class Permit {
+        private final PriorityClass priorityClass;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(PriorityClass priorityClass) {
+            this.priorityClass = priorityClass;
+        }
+
+        public PriorityClass getPriorityClass() {
+            return priorityClass;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                UpstreamScheduler.this.release(priorityClass);
+            }
+        }
+    }
+
+    private enum Status {
+        QUEUED, ADMITTED, SHED
+    }
+
+    private static class Ticket {
+        private final PriorityClass priorityClass;
+        private final Consumer<Permit> onAdmit;
+        private final Consumer<ShedReason> onShed;
+        private final long enqueuedAt = System.nanoTime();
+        private Status status = Status.QUEUED;
+        private double finishTag;
+        private volatile HashedTimingWheel.Timeout deadline;
+
+        private Ticket(PriorityClass priorityClass, Consumer<Permit> onAdmit, Consumer<ShedReason> onShed) {
+            this.priorityClass = priorityClass;
+            this.onAdmit = onAdmit;
+            this.onShed = onShed;
+        }
+    }
+
+    private static class ClassState {
+        private final ArrayDeque<Ticket> queue = new ArrayDeque<>();
+        private final LatencyWindow waitMillis = new LatencyWindow(WAIT_WINDOW);
+        private double lastFinishTag;
+        private int inFlight;
+        private int queued;
+        private long admitted;
+        private long shed;
+    }
+}
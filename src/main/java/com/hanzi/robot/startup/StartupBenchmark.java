@@ -0,0 +1,164 @@
+package com.hanzi.robot.startup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 启动基准：反复拉起应用进程，测量 进程启动 -> 就绪 -> 第一次成功回答 的耗时
+ * 用法: java -cp target/classes:... com.hanzi.robot.startup.StartupBenchmark 次数 启动命令...
+ * 例如: StartupBenchmark 5 java -XX:SharedArchiveFile=target/robot.jsa @target/cds.args com.hanzi.robot.RobotApplication
+ * 端口通过 -Dbenchmark.port 指定，默认8080
+ */
+public class StartupBenchmark {
+
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(120);
+
+    private final String baseUrl;
+    private final String wsUrl;
+    private final OkHttpClient okHttpClient = new OkHttpClient.Builder()
+            .connectTimeout(1, TimeUnit.SECONDS)
+            .readTimeout(60, TimeUnit.SECONDS)
+            .build();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public StartupBenchmark(int port) {
+        this.baseUrl = "http://localhost:" + port;
+        this.wsUrl = "ws://localhost:" + port + "/ws/chat/websocket";
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("用法: StartupBenchmark <次数> <启动命令...>");
+            System.exit(1);
+        }
+        int runs = Integer.parseInt(args[0]);
+        List<String> command = Arrays.asList(args).subList(1, args.length);
+        StartupBenchmark benchmark = new StartupBenchmark(Integer.getInteger("benchmark.port", 8080));
+
+        List<Long> readyMillis = new ArrayList<>();
+        List<Long> answerMillis = new ArrayList<>();
+        for (int i = 1; i <= runs; i++) {
+            long[] result = benchmark.run(command);
+            readyMillis.add(result[0]);
+            answerMillis.add(result[1]);
+            System.out.printf("第%d次: 就绪 %dms, 首次成功回答 %dms%n", i, result[0], result[1]);
+        }
+        print("就绪", readyMillis);
+        print("首次成功回答", answerMillis);
+        System.exit(0);
+    }
+
+    /**
+     * 拉起一次应用进程，返回 [就绪耗时, 首次成功回答耗时]，单位毫秒
+     */
+    private long[] run(List<String> command) throws Exception {
+        File log = File.createTempFile("startup-benchmark", ".log");
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+        try {
+            while (!isReady()) {
+                checkAlive(process, start, log);
+                Thread.sleep(10);
+            }
+            long ready = System.nanoTime() - start;
+            while (!askOnce()) {
+                checkAlive(process, start, log);
+                Thread.sleep(100);
+            }
+            long answered = System.nanoTime() - start;
+            return new long[]{TimeUnit.NANOSECONDS.toMillis(ready), TimeUnit.NANOSECONDS.toMillis(answered)};
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    private void checkAlive(Process process, long start, File log) {
+        if (!process.isAlive()) {
+            throw new IllegalStateException("应用进程已退出, 日志: " + log);
+        }
+        if (System.nanoTime() - start > TIMEOUT_NANOS) {
+            throw new IllegalStateException("等待超时, 日志: " + log);
+        }
+    }
+
+    private boolean isReady() {
+        Request request = new Request.Builder().url(baseUrl + "/chat/ready").build();
+        try (Response response = okHttpClient.newCall(request).execute()) {
+            return response.isSuccessful();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * 通过 /ws/chat 提问一次，收到complete返回true，收到error或连接失败返回false
+     */
+    private boolean askOnce() throws Exception {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        WebSocket webSocket = okHttpClient.newWebSocket(new Request.Builder().url(wsUrl).build(),
+                new WebSocketListener() {
+                    @Override
+                    public void onOpen(WebSocket webSocket, Response response) {
+                        Map<String, Object> message = new HashMap<>();
+                        message.put("type", "chat");
+                        message.put("content", "你好");
+                        try {
+                            webSocket.send(objectMapper.writeValueAsString(message));
+                        } catch (Exception e) {
+                            result.complete(false);
+                        }
+                    }
+
+                    @Override
+                    public void onMessage(WebSocket webSocket, String text) {
+                        try {
+                            String type = objectMapper.readTree(text).path("type").asText();
+                            if ("complete".equals(type)) {
+                                result.complete(true);
+                            } else if ("error".equals(type)) {
+                                result.complete(false);
+                            }
+                        } catch (Exception e) {
+                            result.complete(false);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+                        result.complete(false);
+                    }
+                });
+        try {
+            return result.get(60, TimeUnit.SECONDS);
+        } finally {
+            webSocket.close(1000, "benchmark");
+        }
+    }
+
+    private static void print(String name, List<Long> millis) {
+        List<Long> sorted = new ArrayList<>(millis);
+        Collections.sort(sorted);
+        System.out.printf("%s: min %dms, median %dms, max %dms%n",
+                name, sorted.get(0), sorted.get(sorted.size() / 2), sorted.get(sorted.size() - 1));
+    }
+}
@@ -0,0 +1,83 @@
+package com.hanzi.robot.startup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hanzi.robot.config.StartupConfig;
+import com.hanzi.robot.service.SparkAuthService;
+import com.hanzi.robot.websocket.SparkWebSocketClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * 启动预热
+ * ApplicationRunner执行完之后Spring才会把就绪状态切到ACCEPTING_TRAFFIC，
+ * 所以在这里提前触发第一个聊天请求要付出的类加载和初始化（Jackson、HMAC签名、TLS握手），预热失败不影响启动
+ */
+@Slf4j
+@Component
+public class StartupWarmer implements ApplicationRunner {
+
+    private static final String SAMPLE_FRAME = "{\"header\":{\"code\":0,\"message\":\"Success\",\"sid\":\"warm-up\","
+            + "\"status\":2},\"payload\":{\"choices\":{\"status\":2,\"seq\":0,"
+            + "\"text\":[{\"content\":\"预热\",\"role\":\"assistant\",\"index\":0}]}}}";
+
+    @Autowired
+    private StartupConfig startupConfig;
+
+    @Autowired
+    private SparkAuthService authService;
+
+    @Autowired
+    private SparkWebSocketClient sparkClient;
+
+    @Autowired
+    private ConfigurableApplicationContext applicationContext;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!Boolean.TRUE.equals(startupConfig.getWarmUp())) {
+            return;
+        }
+        long start = System.nanoTime();
+        step("jackson", () -> {
+            JsonNode frame = objectMapper.readTree(SAMPLE_FRAME);
+            Map<String, Object> response = new HashMap<>();
+            response.put("type", "stream");
+            response.put("content", frame.path("payload").path("choices").path("text").get(0).path("content").asText());
+            response.put("timestamp", System.currentTimeMillis());
+            return objectMapper.writeValueAsString(response);
+        });
+        step("hmac", () -> authService.buildSparkMessage("预热", "warm-up") + authService.generateAuthUrl());
+        step("tls", () -> {
+            sparkClient.warmUpConnection(startupConfig.getWarmUpTimeout());
+            return null;
+        });
+        log.info("启动预热完成, 耗时: {}ms", (System.nanoTime() - start) / 1_000_000);
+
+        if (Boolean.TRUE.equals(startupConfig.getExitAfterWarmUp())) {
+            log.info("预热完成后退出（AppCDS训练运行）");
+            System.exit(SpringApplication.exit(applicationContext));
+        }
+    }
+
+    private void step(String name, Callable<Object> action) {
+        long start = System.nanoTime();
+        try {
+            action.call();
+            log.info("预热 {} 完成, 耗时: {}ms", name, (System.nanoTime() - start) / 1_000_000);
+        } catch (Exception e) {
+            log.warn("预热 {} 失败, 耗时: {}ms, 原因: {}", name, (System.nanoTime() - start) / 1_000_000, e.toString());
+        }
+    }
+}
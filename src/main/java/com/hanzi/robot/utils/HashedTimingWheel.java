@@ -0,0 +1,165 @@
+package com.hanzi.robot.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 哈希时间轮
+ * 单线程按固定tick推进指针，每个槽位挂一组超时任务，新增和取消都是O(1)，
+ * 适合"数量多、大部分会在到期前被取消"的超时场景（会话空闲检测等）
+ */
+@Slf4j
+public class HashedTimingWheel {
+
+    private final long tickNanos;
+    private final int mask;
+    private final List<Timeout>[] wheel;
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final String threadName;
+
+    private volatile ScheduledExecutorService worker;
+    // 停止后不能再重启：旧线程上可能还有没跑完的tick，槽位和指针不能复用
+    private volatile boolean stopped;
+    private volatile long startTime;
+    private long tick;
+
+    @SuppressWarnings("unchecked")
+    public HashedTimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel, String threadName) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be greater than 0");
+        }
+        if (ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("ticksPerWheel must be greater than 0");
+        }
+        int size = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        size = Math.max(size, 1);
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.mask = size - 1;
+        this.wheel = new List[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+        this.threadName = threadName;
+    }
+
+    /**
+     * 启动时间轮线程
+     */
+    public synchronized void start() {
+        if (stopped) {
+            throw new IllegalStateException("时间轮已停止: " + threadName);
+        }
+        if (worker != null) {
+            return;
+        }
+        startTime = System.nanoTime();
+        worker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        worker.scheduleAtFixedRate(this::onTick, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 停止时间轮，未到期的任务直接丢弃，之后不能再启动
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (worker != null) {
+            worker.shutdownNow();
+            worker = null;
+        }
+        pendingTimeouts.clear();
+    }
+
+    /**
+     * 提交一个延迟任务，任务在时间轮线程上执行，不能阻塞
+     * 第一次提交时自动启动时间轮，停止之后再提交抛出IllegalStateException
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (worker == null) {
+            start();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(Math.max(delay, 0)) - startTime;
+        Timeout timeout = new Timeout(task, deadline);
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    private void onTick() {
+        try {
+            transferPendingTimeouts();
+            List<Timeout> bucket = wheel[(int) (tick & mask)];
+            expireTimeouts(bucket);
+            tick++;
+        } catch (Throwable t) {
+            // scheduleAtFixedRate遇到异常会停止后续调度，这里必须兜住
+            log.error("时间轮tick处理失败", t);
+        }
+    }
+
+    private void transferPendingTimeouts() {
+        Timeout timeout;
+        while ((timeout = pendingTimeouts.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long calculated = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            // 已经过期的任务放到当前槽位，本轮立即执行
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expireTimeouts(List<Timeout> bucket) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.cancelled) {
+                iterator.remove();
+            } else if (timeout.remainingRounds <= 0) {
+                iterator.remove();
+                try {
+                    timeout.task.run();
+                } catch (Throwable t) {
+                    log.error("时间轮任务执行失败", t);
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+
+    /**
+     * 时间轮中的一个延迟任务句柄
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.hanzi.robot.utils;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 保留最近N个耗时样本的滑动窗口，用于计算分位数
+ */
+public class LatencyWindow {
+
+    private final long[] samples;
+    private long count;
+
+    public LatencyWindow(int size) {
+        this.samples = new long[size];
+    }
+
+    public synchronized void record(long millis) {
+        samples[(int) (count % samples.length)] = millis;
+        count++;
+    }
+
+    public synchronized long count() {
+        return count;
+    }
+
+    /**
+     * 窗口内样本的p50/p90/p99/max，没有样本时返回空
+     */
+    public Map<String, Long> percentiles() {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+        }
+        Map<String, Long> result = new LinkedHashMap<>();
+        if (sorted.length == 0) {
+            return result;
+        }
+        Arrays.sort(sorted);
+        result.put("p50", sorted[(int) Math.ceil(0.50 * sorted.length) - 1]);
+        result.put("p90", sorted[(int) Math.ceil(0.90 * sorted.length) - 1]);
+        result.put("p99", sorted[(int) Math.ceil(0.99 * sorted.length) - 1]);
+        result.put("max", sorted[sorted.length - 1]);
+        return result;
+    }
+}
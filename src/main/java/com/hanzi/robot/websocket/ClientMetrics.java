@@ -0,0 +1,41 @@
+package com.hanzi.robot.websocket;
+
+import com.hanzi.robot.utils.LatencyWindow;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 前端上报的首字延迟（从发送问题到首个token到达/渲染），保留最近的样本用于计算分位数
+ */
+@Component
+public class ClientMetrics {
+
+    private static final int WINDOW = 1024;
+    private static final long MAX_VALUE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final LatencyWindow firstTokenMillis = new LatencyWindow(WINDOW);
+    private final LatencyWindow firstRenderMillis = new LatencyWindow(WINDOW);
+
+    /**
+     * 记录一次首字延迟，明显异常的值直接丢弃
+     */
+    public void recordFirstToken(long tokenMillis, long renderMillis) {
+        if (tokenMillis < 0 || tokenMillis > MAX_VALUE_MILLIS || renderMillis < tokenMillis
+                || renderMillis > MAX_VALUE_MILLIS) {
+            return;
+        }
+        firstTokenMillis.record(tokenMillis);
+        firstRenderMillis.record(renderMillis);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("count", firstTokenMillis.count());
+        stats.put("firstToken", firstTokenMillis.percentiles());
+        stats.put("firstRender", firstRenderMillis.percentiles());
+        return stats;
+    }
+}
@@ -0,0 +1,116 @@
+package com.hanzi.robot.websocket;
+
+import com.hanzi.robot.config.DrainConfig;
+import com.hanzi.robot.controller.ChatController;
+import com.hanzi.robot.scheduler.UpstreamScheduler;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 停机排空
+ * ContextClosedEvent在任何bean停止之前发布，此时Tomcat和OkHttp都还可用：
+ * 先切到不可就绪、停止接收新连接和新问题，等进行中的回答（含同步测试接口）在期限内结束，
+ * 期间通知空闲的前端重连到其它实例，超时的回答直接中断
+ */
+@Slf4j
+@Component
+public class GracefulDrain implements ApplicationListener<ContextClosedEvent> {
+
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    @Autowired
+    private DrainConfig drainConfig;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Autowired
+    private MessageHandler messageHandler;
+
+    @Autowired
+    private SparkWebSocketClient sparkClient;
+
+    @Autowired
+    private UpstreamScheduler upstreamScheduler;
+
+    @Autowired
+    private ChatController chatController;
+
+    private final AtomicBoolean drained = new AtomicBoolean();
+
+    @Override
+    public void onApplicationEvent(ContextClosedEvent event) {
+        if (event.getApplicationContext() != applicationContext || !Boolean.TRUE.equals(drainConfig.getEnabled())
+                || !drained.compareAndSet(false, true)) {
+            return;
+        }
+        drain();
+    }
+
+    /**
+     * 执行排空，返回排空统计
+     */
+    Map<String, Object> drain() {
+        long start = System.nanoTime();
+        long deadline = start + drainConfig.getTimeout().toNanos();
+        long completedBefore = sparkClient.completedStreamCount() + chatController.completedSyncCallCount();
+
+        AvailabilityChangeEvent.publish(applicationContext, ReadinessState.REFUSING_TRAFFIC);
+        messageHandler.startDrain();
+        chatController.startDrain();
+        // 还在排队的请求不再放行，让用户重连到其它实例
+        int shed = upstreamScheduler.shedAll();
+        int inFlight = activeCount();
+        log.info("开始停机排空, 进行中回答: {}, 拒绝排队请求: {}, 最长等待: {}", inFlight, shed, drainConfig.getTimeout());
+
+        int released = 0;
+        try {
+            while (true) {
+                released += messageHandler.releaseIdleSessions();
+                if (activeCount() == 0 || System.nanoTime() >= deadline) {
+                    break;
+                }
+                TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int aborted = sparkClient.abortAllStreams("服务正在重启，回答已中断，请重新提问")
+                + chatController.abortSyncCalls("服务正在重启，调用已中断，请重试");
+        released += messageHandler.releaseIdleSessions();
+        // 按真正收到结束帧的回答计数，上游出错、被回收的回答不算正常结束
+        long completed = sparkClient.completedStreamCount() + chatController.completedSyncCallCount()
+                - completedBefore;
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info("停机排空结束, 开始时进行中回答: {}, 正常结束: {}, 中断: {}, 拒绝排队请求: {}, 通知重连会话: {}, 耗时: {}ms",
+                inFlight, completed, aborted, shed, released, elapsedMillis);
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("inFlight", inFlight);
+        stats.put("completed", completed);
+        stats.put("aborted", aborted);
+        stats.put("shed", shed);
+        stats.put("released", released);
+        stats.put("elapsedMillis", elapsedMillis);
+        return stats;
+    }
+
+    /**
+     * 进行中的上游回答：WebSocket聊天和同步测试接口
+     */
+    private int activeCount() {
+        return sparkClient.activeStreamCount() + chatController.activeSyncCallCount();
+    }
+}
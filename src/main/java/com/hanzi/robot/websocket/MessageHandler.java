@@ -9,8 +9,12 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.SessionLimitExceededException;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -19,16 +23,32 @@ import java.util.concurrent.ConcurrentHashMap;
 @Component
 public class MessageHandler extends TextWebSocketHandler {
 
+    // 单次发送最长阻塞时间和发送缓冲上限，避免慢客户端拖住星火回调线程；
+    // 超出后装饰器丢弃之后的消息并抛SessionLimitExceededException，由发送方关闭会话
+    private static final int SEND_TIME_LIMIT_MILLIS = 10_000;
+    private static final int SEND_BUFFER_SIZE_LIMIT = 512 * 1024;
+
     @Autowired
     private SparkWebSocketClient sparkClient;
 
+    @Autowired
+    private SessionReaper sessionReaper;
+
+    @Autowired
+    private ClientMetrics clientMetrics;
+
     private final ObjectMapper objectMapper = new ObjectMapper();
     private final Map<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
+    private volatile boolean draining;
 
     @Override
-    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
-        String sessionId = session.getId();
+    public void afterConnectionEstablished(WebSocketSession rawSession) throws Exception {
+        String sessionId = rawSession.getId();
+        // 星火回调线程、回收线程和排空线程都会往同一个会话写消息，SockJS会话本身不串行化发送，统一通过装饰器发送
+        WebSocketSession session = new ConcurrentWebSocketSessionDecorator(rawSession,
+                SEND_TIME_LIMIT_MILLIS, SEND_BUFFER_SIZE_LIMIT);
         sessions.put(sessionId, session);
+        sessionReaper.watchUserSession(sessionId, reason -> reapUserSession(sessionId));
         log.info("WebSocket连接建立, sessionId: {}", sessionId);
 
         // 发送连接成功消息
@@ -46,9 +66,11 @@ public class MessageHandler extends TextWebSocketHandler {
     }
 
     @Override
-    protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
-        String sessionId = session.getId();
+    protected void handleTextMessage(WebSocketSession rawSession, TextMessage message) throws Exception {
+        String sessionId = rawSession.getId();
+        WebSocketSession session = sessions.getOrDefault(sessionId, rawSession);
         String payload = message.getPayload();
+        sessionReaper.touchUserSession(sessionId);
         log.debug("收到消息: {}", payload);
 
         try {
@@ -56,11 +78,26 @@ public class MessageHandler extends TextWebSocketHandler {
             String type = jsonNode.get("type").asText();
 
             if ("chat".equals(type)) {
+                if (draining) {
+                    // 停机排空中不再接新问题，让前端重连到其它实例再问
+                    sendReconnect(session);
+                    return;
+                }
                 String question = jsonNode.get("content").asText();
                 log.info("收到聊天消息, session: {}, 问题: {}", sessionId, question);
 
                 // 连接到星火API并发送问题
                 sparkClient.connectToSpark(sessionId, session, question);
+            } else if ("stop".equals(type)) {
+                // 先断开上游再回stopped，前端收到后才允许继续提问，旧回答的帧不会混进新回答
+                sparkClient.stopStream(sessionId);
+                sendStopped(session);
+            } else if ("metric".equals(type)) {
+                // 前端上报的首字延迟
+                if ("ttft".equals(jsonNode.path("name").asText())) {
+                    clientMetrics.recordFirstToken(jsonNode.path("value").asLong(-1),
+                            jsonNode.path("renderValue").asLong(-1));
+                }
             }
 
         } catch (Exception e) {
@@ -82,10 +119,87 @@ public class MessageHandler extends TextWebSocketHandler {
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
         String sessionId = session.getId();
         sessions.remove(sessionId);
+        sessionReaper.unwatchUserSession(sessionId);
         sparkClient.closeUserSession(sessionId);
         log.info("WebSocket连接关闭, sessionId: {}, 状态: {}", sessionId, status);
     }
 
+    /**
+     * 回收空闲会话：会话可能已静默断开、收不到afterConnectionClosed，这里主动清理两端
+     */
+    private void reapUserSession(String sessionId) {
+        WebSocketSession session = sessions.remove(sessionId);
+        sparkClient.closeUserSession(sessionId);
+        if (session != null && session.isOpen()) {
+            try {
+                session.close(CloseStatus.SESSION_NOT_RELIABLE.withReason("空闲超时"));
+            } catch (IOException e) {
+                log.warn("关闭空闲会话失败, sessionId: {}", sessionId, e);
+            }
+        }
+    }
+
+    /**
+     * 进入排空模式，之后收到的chat消息都会被要求重连
+     */
+    public void startDrain() {
+        draining = true;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * 通知所有没有进行中回答的会话重连到其它实例并关闭，返回本次通知的数量
+     */
+    public int releaseIdleSessions() {
+        int released = 0;
+        for (WebSocketSession session : sessions.values()) {
+            if (sparkClient.hasActiveStream(session.getId())) {
+                continue;
+            }
+            sessions.remove(session.getId());
+            sessionReaper.unwatchUserSession(session.getId());
+            try {
+                if (session.isOpen()) {
+                    sendReconnect(session);
+                    session.close(CloseStatus.SERVICE_RESTARTED);
+                }
+            } catch (SessionLimitExceededException e) {
+                // 发送超限的慢客户端通知不到，直接关闭底层会话
+                closeQuietly(WebSocketSessionDecorator.unwrap(session), e.getStatus());
+            } catch (IOException e) {
+                log.warn("通知会话重连失败, sessionId: {}", session.getId(), e);
+            }
+            released++;
+        }
+        return released;
+    }
+
+    private void closeQuietly(WebSocketSession session, CloseStatus status) {
+        try {
+            session.close(status);
+        } catch (IOException e) {
+            log.warn("关闭会话失败, sessionId: {}", session.getId(), e);
+        }
+    }
+
+    private void sendReconnect(WebSocketSession session) throws IOException {
+        Map<String, Object> response = new HashMap<>(3);
+        response.put("type", "reconnect");
+        response.put("content", "服务正在重启，请重新连接");
+        response.put("sessionId", session.getId());
+        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+    }
+
+    private void sendStopped(WebSocketSession session) throws IOException {
+        Map<String, Object> response = new HashMap<>(2);
+        response.put("type", "stopped");
+        response.put("sessionId", session.getId());
+        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+    }
+
     @Override
     public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
         log.error("WebSocket传输错误, sessionId: " + session.getId(), exception);
@@ -0,0 +1,219 @@
+package com.hanzi.robot.websocket;
+
+import com.hanzi.robot.config.ReaperConfig;
+import com.hanzi.robot.utils.HashedTimingWheel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 空闲会话回收器
+ * 关闭回调丢失时（上游卡住不发status=2、SockJS会话静默断开等），按空闲时间和最长回答时间兜底回收前端会话和星火上游连接
+ * 时间轮线程只做到期检查，回收动作（通知用户、关闭连接）都有网络IO，交给单独的回收线程执行
+ */
+@Slf4j
+@Component
+public class SessionReaper {
+
+    public enum Reason {
+        /** 超过空闲时间无活动 */
+        IDLE,
+        /** 超过最长回答时间 */
+        MAX_DURATION
+    }
+
+    @Autowired
+    private ReaperConfig reaperConfig;
+
+    private HashedTimingWheel timingWheel;
+    private ExecutorService reapExecutor;
+    private final Map<String, Watch> userWatches = new ConcurrentHashMap<>();
+    private final Map<String, Watch> upstreamWatches = new ConcurrentHashMap<>();
+
+    private final AtomicLong reapedUserSessions = new AtomicLong();
+    private final AtomicLong reapedIdleUpstreams = new AtomicLong();
+    private final AtomicLong reapedOverdueUpstreams = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        timingWheel = new HashedTimingWheel(reaperConfig.getTickDuration().toMillis(), TimeUnit.MILLISECONDS,
+                reaperConfig.getTicksPerWheel(), "session-reaper");
+        timingWheel.start();
+        reapExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "session-reaper-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 开始跟踪前端会话，回调在回收线程上执行
+     */
+    public void watchUserSession(String sessionId, Consumer<Reason> onReap) {
+        watch(userWatches, sessionId, reaperConfig.getUserIdleTimeout(), null, onReap);
+    }
+
+    /**
+     * 开始跟踪一次星火上游回答，按请求ID区分同一会话先后的回答，回调在回收线程上执行
+     */
+    public void watchUpstream(String requestId, Consumer<Reason> onReap) {
+        watch(upstreamWatches, requestId, reaperConfig.getUpstreamIdleTimeout(),
+                reaperConfig.getMaxAnswerDuration(), onReap);
+    }
+
+    public void touchUserSession(String sessionId) {
+        touch(userWatches, sessionId);
+    }
+
+    public void touchUpstream(String requestId) {
+        touch(upstreamWatches, requestId);
+    }
+
+    public void unwatchUserSession(String sessionId) {
+        unwatch(userWatches, sessionId);
+    }
+
+    public void unwatchUpstream(String requestId) {
+        unwatch(upstreamWatches, requestId);
+    }
+
+    /**
+     * 回收统计
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("watchedUserSessions", userWatches.size());
+        stats.put("watchedUpstreams", upstreamWatches.size());
+        stats.put("reapedUserSessions", reapedUserSessions.get());
+        stats.put("reapedIdleUpstreams", reapedIdleUpstreams.get());
+        stats.put("reapedOverdueUpstreams", reapedOverdueUpstreams.get());
+        return stats;
+    }
+
+    private void watch(Map<String, Watch> watches, String key, Duration idleTimeout,
+                       Duration maxDuration, Consumer<Reason> onReap) {
+        Watch watch = new Watch(watches, key, idleTimeout.toNanos(),
+                maxDuration != null ? maxDuration.toNanos() : 0, onReap);
+        Watch previous = watches.put(key, watch);
+        if (previous != null) {
+            previous.cancel();
+        }
+        watch.schedule(watch.idleNanos);
+    }
+
+    private void touch(Map<String, Watch> watches, String key) {
+        Watch watch = watches.get(key);
+        if (watch != null) {
+            // 只记录时间戳，到期检查时再按最新活动时间顺延，避免每次活动都重新挂时间轮
+            watch.lastActivity = System.nanoTime();
+        }
+    }
+
+    private void unwatch(Map<String, Watch> watches, String key) {
+        Watch watch = watches.remove(key);
+        if (watch != null) {
+            watch.cancel();
+        }
+    }
+
+    private void reap(Watch watch, Reason reason) {
+        if (!watch.watches.remove(watch.key, watch)) {
+            return;
+        }
+        if (watch.watches == userWatches) {
+            reapedUserSessions.incrementAndGet();
+        } else if (reason == Reason.IDLE) {
+            reapedIdleUpstreams.incrementAndGet();
+        } else {
+            reapedOverdueUpstreams.incrementAndGet();
+        }
+        if (watch.watches == userWatches) {
+            log.warn("回收空闲前端会话, session: {}, 原因: {}", watch.key, reason);
+        } else {
+            log.warn("回收星火上游连接, request: {}, 原因: {}", watch.key, reason);
+        }
+        reapExecutor.execute(() -> {
+            try {
+                watch.onReap.accept(reason);
+            } catch (Exception e) {
+                log.error("回收会话失败, key: {}", watch.key, e);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (timingWheel != null) {
+            timingWheel.stop();
+        }
+        if (reapExecutor != null) {
+            reapExecutor.shutdown();
+        }
+        log.info("会话回收统计: {}", stats());
+    }
+
+    private class Watch {
+        private final Map<String, Watch> watches;
+        private final String key;
+        private final long idleNanos;
+        private final long maxNanos;
+        private final long startedAt;
+        private final Consumer<Reason> onReap;
+        private volatile long lastActivity;
+        private volatile HashedTimingWheel.Timeout timeout;
+
+        private Watch(Map<String, Watch> watches, String key, long idleNanos, long maxNanos,
+                      Consumer<Reason> onReap) {
+            this.watches = watches;
+            this.key = key;
+            this.idleNanos = idleNanos;
+            this.maxNanos = maxNanos;
+            this.onReap = onReap;
+            this.startedAt = System.nanoTime();
+            this.lastActivity = startedAt;
+        }
+
+        private void schedule(long delayNanos) {
+            timeout = timingWheel.newTimeout(this::check, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void check() {
+            long now = System.nanoTime();
+            if (maxNanos > 0 && now - startedAt >= maxNanos) {
+                reap(this, Reason.MAX_DURATION);
+                return;
+            }
+            long idleRemaining = lastActivity + idleNanos - now;
+            if (idleRemaining <= 0) {
+                reap(this, Reason.IDLE);
+                return;
+            }
+            long nextCheck = idleRemaining;
+            if (maxNanos > 0) {
+                nextCheck = Math.min(nextCheck, startedAt + maxNanos - now);
+            }
+            if (watches.get(key) == this) {
+                schedule(nextCheck);
+            }
+        }
+
+        private void cancel() {
+            HashedTimingWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+    }
+}
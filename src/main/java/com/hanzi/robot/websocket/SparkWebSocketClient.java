@@ -4,6 +4,12 @@ package com.hanzi.robot.websocket;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hanzi.robot.jfr.ChatTrace;
+import com.hanzi.robot.jfr.SparkFlushEvent;
+import com.hanzi.robot.replay.StreamRecorder;
+import com.hanzi.robot.replay.StreamRecordingWriter;
+import com.hanzi.robot.scheduler.PriorityClass;
+import com.hanzi.robot.scheduler.UpstreamScheduler;
 import com.hanzi.robot.service.SparkAuthService;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.*;
@@ -11,14 +17,19 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.SessionLimitExceededException;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
 @Component
@@ -27,10 +38,21 @@ public class SparkWebSocketClient {
     @Autowired
     private SparkAuthService authService;
 
+    @Autowired
+    private SessionReaper sessionReaper;
+
+    @Autowired
+    private StreamRecorder streamRecorder;
+
+    @Autowired
+    private UpstreamScheduler upstreamScheduler;
+
     private OkHttpClient okHttpClient;
-    private Map<String, WebSocket> connections = new ConcurrentHashMap<>();
-    private Map<String, StringBuilder> messageBuffers = new ConcurrentHashMap<>();
-    private Map<String, WebSocketSession> userSessions = new ConcurrentHashMap<>();
+    // 每个前端会话同一时刻最多一个进行中的回答
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+    // 还在排队的提问，停止、断开或同一会话的新提问都会让它作废
+    private final Map<String, ChatTrace> queuedRequests = new ConcurrentHashMap<>();
+    private final AtomicLong completedStreams = new AtomicLong();
 
     private final ObjectMapper objectMapper = new ObjectMapper();
 
@@ -49,130 +71,296 @@ public class SparkWebSocketClient {
      * 建立与星火API的WebSocket连接
      */
     public void connectToSpark(String sessionId, WebSocketSession userSession, String question) {
+        ChatTrace trace = new ChatTrace(sessionId);
+        trace.queued(PriorityClass.INTERACTIVE.name());
+        queuedRequests.put(sessionId, trace);
+        upstreamScheduler.submit(PriorityClass.INTERACTIVE,
+                permit -> startStream(sessionId, userSession, question, trace, permit),
+                reason -> {
+                    if (!queuedRequests.remove(sessionId, trace)) {
+                        return;
+                    }
+                    if (reason == UpstreamScheduler.ShedReason.DRAIN) {
+                        // 停机排空：让前端换一个实例重发同一个问题
+                        trace.failed("停机排空");
+                        sendReconnect(userSession, sessionId);
+                    } else {
+                        trace.failed("排队超时");
+                        sendError(userSession, sessionId, "当前提问人数过多，请稍后再试");
+                    }
+                });
+    }
+
+    /**
+     * 拿到上游名额后建立连接，名额在回答结束清理时归还
+     */
+    private void startStream(String sessionId, WebSocketSession userSession, String question, ChatTrace trace,
+                             UpstreamScheduler.Permit permit) {
+        trace.admitted();
+        if (!queuedRequests.remove(sessionId, trace)) {
+            // 排队期间用户已经停止或又提了新问题
+            trace.failed("排队中已取消");
+            permit.release();
+            return;
+        }
+        if (!userSession.isOpen()) {
+            // 排队期间用户已经断开
+            trace.failed("用户已断开");
+            permit.release();
+            return;
+        }
+        Stream stream = register(sessionId, userSession, trace);
+        stream.permit = permit;
         try {
-            userSessions.put(sessionId, userSession);
-            messageBuffers.put(sessionId, new StringBuilder());
+            WebSocketListener listener = newListener(stream, question);
 
+            trace.authStarted();
             String authUrl = authService.generateAuthUrl();
-            log.info("Generated auth URL for session: {}", sessionId);
+            trace.authFinished();
+            log.info("Generated auth URL for session: {}, request: {}", sessionId, trace.getRequestId());
 
             Request request = new Request.Builder()
                     .url(authUrl)
                     .build();
 
-            okHttpClient.newWebSocket(request, new WebSocketListener() {
-                @Override
-                public void onOpen(okhttp3.WebSocket webSocket, Response response) {
-                    log.info("Connected to Spark API, session: {}", sessionId);
-                    connections.put(sessionId, webSocket);
+            trace.connectStarted();
+            stream.webSocket = okHttpClient.newWebSocket(request, listener);
+            if (!isActive(stream)) {
+                // 建连期间回答已被中断，名额已经归还，不能再让这条连接继续
+                stream.webSocket.cancel();
+            }
 
-                    // 发送用户消息
-                    String sparkMessage = authService.buildSparkMessage(question, sessionId);
-                    webSocket.send(sparkMessage);
-                    log.debug("Sent message to Spark: {}", sparkMessage);
+        } catch (Exception e) {
+            log.error("连接星火API失败", e);
+            trace.failed(e.getMessage());
+            sendError(stream, "建立连接失败: " + e.getMessage());
+            cleanup(stream);
+        }
+    }
+
+    /**
+     * 登记一次回答的会话状态并创建上游帧监听器
+     * 回放工具也通过这里驱动完整的帧解析、缓冲和推送链路
+     */
+    public WebSocketListener openStream(String sessionId, WebSocketSession userSession, String question,
+                                        ChatTrace trace) {
+        return newListener(register(sessionId, userSession, trace), question);
+    }
+
+    /**
+     * 登记一次回答，同一会话上一个还没结束的回答先断开上游再归还名额
+     */
+    private Stream register(String sessionId, WebSocketSession userSession, ChatTrace trace) {
+        Stream stream = new Stream(sessionId, userSession, trace);
+        Stream previous = streams.put(sessionId, stream);
+        if (previous != null) {
+            log.warn("会话上一个回答还没结束, 直接中断, session: {}, request: {}",
+                    sessionId, previous.trace.getRequestId());
+            previous.trace.failed("被同一会话的新提问取代");
+            abortStream(previous, null);
+        }
+        sessionReaper.watchUpstream(trace.getRequestId(), reason -> reapUpstream(stream, reason));
+        return stream;
+    }
+
+    private WebSocketListener newListener(Stream stream, String question) {
+        String sessionId = stream.sessionId;
+        ChatTrace trace = stream.trace;
+        return new WebSocketListener() {
+            private StreamRecordingWriter recording;
+
+            @Override
+            public void onOpen(okhttp3.WebSocket webSocket, Response response) {
+                if (!isActive(stream)) {
+                    webSocket.cancel();
+                    return;
                 }
+                trace.connected();
+                log.info("Connected to Spark API, session: {}", sessionId);
+                stream.webSocket = webSocket;
 
-                @Override
-                public void onMessage(okhttp3.WebSocket webSocket, String text) {
-                    try {
-                        JsonNode jsonNode = objectMapper.readTree(text);
-                        JsonNode header = jsonNode.get("header");
-
-                        if (header != null) {
-                            int code = header.get("code").asInt();
-                            if (code != 0) {
-                                log.error("Spark API error, code: {}, message: {}",
-                                        code, header.get("message").asText());
-                                sendErrorToUser(sessionId, "星火API返回错误: " + code);
-                                return;
-                            }
+                // 发送用户消息
+                String sparkMessage = authService.buildSparkMessage(question, sessionId);
+                webSocket.send(sparkMessage);
+                trace.questionSent();
+                recording = streamRecorder.start(trace.getRequestId(), question);
+                log.debug("Sent message to Spark: {}", sparkMessage);
+            }
+
+            @Override
+            public void onMessage(okhttp3.WebSocket webSocket, String text) {
+                // 已被中断的回答，缓冲区里剩下的帧直接丢弃
+                if (!isActive(stream)) {
+                    return;
+                }
+                sessionReaper.touchUpstream(trace.getRequestId());
+                record(text);
+                try {
+                    JsonNode jsonNode = objectMapper.readTree(text);
+                    JsonNode header = jsonNode.get("header");
+
+                    if (header != null) {
+                        int code = header.get("code").asInt();
+                        if (code != 0) {
+                            log.error("Spark API error, code: {}, message: {}",
+                                    code, header.get("message").asText());
+                            trace.failed("星火API返回错误: " + code);
+                            sendError(stream, "星火API返回错误: " + code);
+                            return;
+                        }
+
+                        // 检查是否结束
+                        boolean end = header.has("status") && header.get("status").asInt() == 2;
+
+                        // 获取回答内容
+                        JsonNode payload = jsonNode.get("payload");
+                        if (payload != null && payload.has("choices")) {
+                            JsonNode choices = payload.get("choices");
+                            JsonNode textNode = choices.get("text");
+                            if (textNode != null && textNode.isArray() && textNode.size() > 0) {
+                                JsonNode contentNode = textNode.get(0).get("content");
+                                if (contentNode != null) {
+                                    String content = contentNode.asText();
+                                    stream.buffer.append(content);
+                                    trace.tokenReceived(content.length());
+
+                                    // 实时发送给前端
+                                    sendToUser(stream, content, false);
 
-                            // 检查是否结束
-                            boolean end = header.has("status") && header.get("status").asInt() == 2;
-
-                            // 获取回答内容
-                            JsonNode payload = jsonNode.get("payload");
-                            if (payload != null && payload.has("choices")) {
-                                JsonNode choices = payload.get("choices");
-                                JsonNode textNode = choices.get("text");
-                                if (textNode != null && textNode.isArray() && textNode.size() > 0) {
-                                    JsonNode contentNode = textNode.get(0).get("content");
-                                    if (contentNode != null) {
-                                        String content = contentNode.asText();
-                                        messageBuffers.get(sessionId).append(content);
-
-                                        // 实时发送给前端
-                                        sendToUser(sessionId, content, false);
-
-                                        if (end) {
-                                            // 发送完整回答并关闭连接
-                                            String fullResponse = messageBuffers.get(sessionId).toString();
-                                            sendToUser(sessionId, fullResponse, true);
-                                            cleanup(sessionId);
-                                        }
+                                    if (end) {
+                                        // 发送完整回答并关闭连接
+                                        String fullResponse = stream.buffer.toString();
+                                        sendToUser(stream, fullResponse, true);
+                                        trace.completed();
+                                        completedStreams.incrementAndGet();
+                                        stopRecording();
+                                        cleanup(stream);
                                     }
                                 }
                             }
                         }
-                    } catch (Exception e) {
-                        log.error("处理Spark消息失败", e);
-                        sendErrorToUser(sessionId, "处理消息时发生错误");
                     }
+                } catch (Exception e) {
+                    log.error("处理Spark消息失败", e);
+                    trace.failed("处理消息时发生错误: " + e.getMessage());
+                    sendError(stream, "处理消息时发生错误");
                 }
+            }
+
+            @Override
+            public void onClosing(okhttp3.WebSocket webSocket, int code, String reason) {
+                log.info("Closing connection to Spark, session: {}, code: {}", sessionId, code);
+            }
 
-                @Override
-                public void onClosing(okhttp3.WebSocket webSocket, int code, String reason) {
-                    log.info("Closing connection to Spark, session: {}, code: {}", sessionId, code);
+            @Override
+            public void onFailure(okhttp3.WebSocket webSocket, Throwable t, Response response) {
+                stopRecording();
+                if (!isActive(stream)) {
+                    // 主动中断（cancel）也会走到这里，用户已经收到过通知
+                    cleanup(stream);
+                    return;
                 }
+                log.error("Spark WebSocket connection failed, session: {}", sessionId, t);
+                trace.failed(t.getMessage());
+                sendError(stream, "连接星火API失败: " + t.getMessage());
+                cleanup(stream);
+            }
 
-                @Override
-                public void onFailure(okhttp3.WebSocket webSocket, Throwable t, Response response) {
-                    log.error("Spark WebSocket connection failed, session: {}", sessionId, t);
-                    sendErrorToUser(sessionId, "连接星火API失败: " + t.getMessage());
-                    cleanup(sessionId);
+            @Override
+            public void onClosed(okhttp3.WebSocket webSocket, int code, String reason) {
+                log.info("Connection closed, session: {}, code: {}, reason: {}", sessionId, code, reason);
+                trace.failed("连接在回答结束前关闭: " + code);
+                stopRecording();
+                cleanup(stream);
+            }
+
+            private void record(String text) {
+                if (recording == null) {
+                    return;
                 }
+                try {
+                    recording.frame(text);
+                } catch (IOException e) {
+                    log.warn("录制星火回答失败, session: {}", sessionId, e);
+                    stopRecording();
+                }
+            }
 
-                @Override
-                public void onClosed(okhttp3.WebSocket webSocket, int code, String reason) {
-                    log.info("Connection closed, session: {}, code: {}, reason: {}", sessionId, code, reason);
-                    cleanup(sessionId);
+            private void stopRecording() {
+                if (recording == null) {
+                    return;
                 }
-            });
+                try {
+                    recording.close();
+                } catch (IOException e) {
+                    log.warn("关闭回答录制文件失败, session: {}", sessionId, e);
+                }
+                recording = null;
+            }
+        };
+    }
 
-        } catch (Exception e) {
-            log.error("连接星火API失败", e);
-            sendErrorToUser(sessionId, "建立连接失败: " + e.getMessage());
-            cleanup(sessionId);
+    /**
+     * 预热到星火API的连接：提前完成DNS解析、TLS类加载和握手
+     * 只走HTTP/1.1，和WebSocket升级请求地址一致，连接池里的空闲连接可以直接被第一次建连复用
+     */
+    public void warmUpConnection(Duration timeout) throws IOException {
+        OkHttpClient warmUpClient = okHttpClient.newBuilder()
+                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
+                .callTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .build();
+        Request request = new Request.Builder()
+                .url(authService.generateAuthUrl())
+                .head()
+                .build();
+        try (Response response = warmUpClient.newCall(request).execute()) {
+            log.info("预热星火API连接完成, HTTP状态: {}", response.code());
         }
     }
 
     /**
      * 发送消息给前端用户
      */
-    private void sendToUser(String sessionId, String content, boolean isEnd) {
+    private void send(Stream stream, String content, boolean isEnd) {
         try {
-            WebSocketSession session = userSessions.get(sessionId);
-            if (session != null && session.isOpen()) {
+            WebSocketSession session = stream.userSession;
+            if (session.isOpen()) {
                 Map<String, Object> response = new HashMap<>();
                 response.put("type", isEnd ? "complete" : "stream");
                 response.put("content", content);
-                response.put("sessionId", sessionId);
+                response.put("sessionId", stream.sessionId);
                 response.put("timestamp", System.currentTimeMillis());
 
                 String jsonResponse = objectMapper.writeValueAsString(response);
                 session.sendMessage(new TextMessage(jsonResponse));
+                // 只有真正发出去的消息才算前端会话的活动
+                sessionReaper.touchUserSession(stream.sessionId);
             }
+        } catch (SessionLimitExceededException e) {
+            closeSlowSession(stream.userSession, stream.sessionId, e);
         } catch (IOException e) {
             log.error("发送消息给用户失败", e);
         }
     }
 
+    /**
+     * 发送消息给前端用户，并记录推送耗时
+     */
+    private void sendToUser(Stream stream, String content, boolean isEnd) {
+        SparkFlushEvent flushEvent = stream.trace.flushStarted(content.length(), isEnd);
+        send(stream, content, isEnd);
+        stream.trace.flushFinished(flushEvent);
+    }
+
     /**
      * 发送错误信息给前端用户
      */
-    private void sendErrorToUser(String sessionId, String error) {
+    private void sendError(Stream stream, String error) {
+        sendError(stream.userSession, stream.sessionId, error);
+    }
+
+    private void sendError(WebSocketSession session, String sessionId, String error) {
         try {
-            WebSocketSession session = userSessions.get(sessionId);
             if (session != null && session.isOpen()) {
                 Map<String, Object> response = new HashMap<>();
                 response.put("type", "error");
@@ -182,28 +370,145 @@ public class SparkWebSocketClient {
                 String jsonResponse = objectMapper.writeValueAsString(response);
                 session.sendMessage(new TextMessage(jsonResponse));
             }
+        } catch (SessionLimitExceededException e) {
+            closeSlowSession(session, sessionId, e);
         } catch (IOException e) {
             log.error("发送错误信息给用户失败", e);
         }
     }
 
+    private void sendReconnect(WebSocketSession session, String sessionId) {
+        try {
+            if (session.isOpen()) {
+                Map<String, Object> response = new HashMap<>();
+                response.put("type", "reconnect");
+                response.put("content", "服务正在重启，请重新连接");
+                response.put("sessionId", sessionId);
+                session.sendMessage(new TextMessage(objectMapper.writeValueAsString(response)));
+            }
+        } catch (SessionLimitExceededException e) {
+            closeSlowSession(session, sessionId, e);
+        } catch (IOException e) {
+            log.error("通知用户重连失败", e);
+        }
+    }
+
+    /**
+     * 前端会话超过发送时间或缓冲上限：装饰器只会抛出异常并丢弃之后的所有消息，不会关闭会话，
+     * 这里关闭底层会话并断开进行中的回答，否则会话一直开着却收不到任何消息
+     */
+    private void closeSlowSession(WebSocketSession session, String sessionId, SessionLimitExceededException e) {
+        log.warn("前端会话发送超限, 关闭会话, sessionId: {}, 原因: {}", sessionId, e.getMessage());
+        cancel(sessionId, "前端发送超限");
+        try {
+            WebSocketSessionDecorator.unwrap(session).close(e.getStatus());
+        } catch (IOException ex) {
+            log.warn("关闭发送超限的会话失败, sessionId: {}", sessionId, ex);
+        }
+    }
+
+    private boolean isActive(Stream stream) {
+        return streams.get(stream.sessionId) == stream;
+    }
+
     /**
      * 清理资源
+     * 只清理这一次回答自己的状态，同一会话后来的回答不受影响
      */
-    private void cleanup(String sessionId) {
-        WebSocket webSocket = connections.remove(sessionId);
+    private void cleanup(Stream stream) {
+        streams.remove(stream.sessionId, stream);
+        sessionReaper.unwatchUpstream(stream.trace.getRequestId());
+        WebSocket webSocket = stream.webSocket;
         if (webSocket != null) {
             webSocket.close(1000, "正常关闭");
         }
-        messageBuffers.remove(sessionId);
-        userSessions.remove(sessionId);
+        // 归还名额可能会立刻放行排队中的请求，放在最后
+        stream.releasePermit();
+    }
+
+    /**
+     * 回收卡住的上游连接，不等待星火的关闭握手
+     */
+    private void reapUpstream(Stream stream, SessionReaper.Reason reason) {
+        if (!isActive(stream)) {
+            return;
+        }
+        stream.trace.failed(reason == SessionReaper.Reason.IDLE ? "上游空闲超时" : "超过最长回答时间");
+        abortStream(stream, reason == SessionReaper.Reason.IDLE
+                ? "星火API长时间无响应，已断开" : "回答超过最长时长，已中断");
+    }
+
+    /**
+     * 中断一次进行中的回答：通知用户（error为null时不通知）后直接断开上游，断开之后才归还名额
+     */
+    private void abortStream(Stream stream, String error) {
+        streams.remove(stream.sessionId, stream);
+        sessionReaper.unwatchUpstream(stream.trace.getRequestId());
+        if (error != null) {
+            sendError(stream, error);
+        }
+        WebSocket webSocket = stream.webSocket;
+        if (webSocket != null) {
+            webSocket.cancel();
+        }
+        stream.releasePermit();
+    }
+
+    /**
+     * 中断所有进行中的回答，返回中断的数量
+     */
+    public int abortAllStreams(String error) {
+        int aborted = 0;
+        for (Stream stream : streams.values()) {
+            stream.trace.failed("停机中断");
+            abortStream(stream, error);
+            aborted++;
+        }
+        return aborted;
+    }
+
+    /**
+     * 该会话是否有进行中的回答
+     */
+    public boolean hasActiveStream(String sessionId) {
+        return streams.containsKey(sessionId);
+    }
+
+    public int activeStreamCount() {
+        return streams.size();
+    }
+
+    /**
+     * 启动以来正常结束（收到status=2）的回答数
+     */
+    public long completedStreamCount() {
+        return completedStreams.get();
     }
 
     /**
-     * 关闭用户会话
+     * 用户主动停止回答：取消排队中的提问，进行中的回答直接断开上游，不再推送
+     */
+    public void stopStream(String sessionId) {
+        cancel(sessionId, "用户停止");
+    }
+
+    /**
+     * 关闭用户会话，进行中的回答直接断开上游
      */
     public void closeUserSession(String sessionId) {
-        cleanup(sessionId);
+        cancel(sessionId, "用户已断开");
+    }
+
+    private void cancel(String sessionId, String reason) {
+        ChatTrace queued = queuedRequests.remove(sessionId);
+        if (queued != null) {
+            queued.failed(reason);
+        }
+        Stream stream = streams.get(sessionId);
+        if (stream != null) {
+            stream.trace.failed(reason);
+            abortStream(stream, null);
+        }
     }
 
     @PreDestroy
@@ -212,4 +517,29 @@ public class SparkWebSocketClient {
             okHttpClient.dispatcher().executorService().shutdown();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 一次回答的上游连接、缓冲和名额
+     */
+    private static class Stream {
+        private final String sessionId;
+        private final WebSocketSession userSession;
+        private final ChatTrace trace;
+        private final StringBuilder buffer = new StringBuilder();
+        private volatile WebSocket webSocket;
+        private volatile UpstreamScheduler.Permit permit;
+
+        private Stream(String sessionId, WebSocketSession userSession, ChatTrace trace) {
+            this.sessionId = sessionId;
+            this.userSession = userSession;
+            this.trace = trace;
+        }
+
+        private void releasePermit() {
+            UpstreamScheduler.Permit current = permit;
+            if (current != null) {
+                current.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.hanzi.robot.jfr;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatTraceTests {
+
+    private static final String PREFIX = "com.hanzi.robot.";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void recordsEveryStageOfCompletedRequest() throws Exception {
+        ChatTrace trace;
+        List<RecordedEvent> events;
+        try (Recording recording = startRecording()) {
+            trace = new ChatTrace("s1");
+            trace.queued("INTERACTIVE");
+            trace.admitted();
+            trace.authStarted();
+            trace.authFinished();
+            trace.connectStarted();
+            trace.connected();
+            trace.questionSent();
+            trace.tokenReceived(2);
+            trace.flushFinished(trace.flushStarted(2, false));
+            trace.tokenReceived(3);
+            trace.flushFinished(trace.flushStarted(5, true));
+            trace.completed();
+            // 结束后的失败不再提交
+            trace.failed("迟到的失败");
+            events = stop(recording, "completed.jfr");
+        }
+
+        assertEquals("SparkQueue,SparkAuth,SparkConnect,SparkFirstToken,SparkFlush,SparkFlush,SparkComplete",
+                events.stream().map(e -> e.getEventType().getName().substring(PREFIX.length()))
+                        .collect(Collectors.joining(",")));
+        for (RecordedEvent event : events) {
+            assertEquals(trace.getRequestId(), event.getString("requestId"));
+            assertEquals("s1", event.getString("sessionId"));
+        }
+        assertEquals("INTERACTIVE", events.get(0).getString("priorityClass"));
+        RecordedEvent complete = events.get(events.size() - 1);
+        assertEquals(2, complete.getInt("frames"));
+        assertEquals(5, complete.getInt("characters"));
+    }
+
+    @Test
+    void recordsFailedStage() throws Exception {
+        ChatTrace trace;
+        List<RecordedEvent> events;
+        try (Recording recording = startRecording()) {
+            trace = new ChatTrace("s2");
+            trace.queued("API");
+            trace.admitted();
+            trace.authStarted();
+            trace.authFinished();
+            trace.connectStarted();
+            trace.failed("连接失败");
+            trace.completed();
+            events = stop(recording, "failed.jfr");
+        }
+
+        RecordedEvent error = events.get(events.size() - 1);
+        assertEquals(PREFIX + "SparkError", error.getEventType().getName());
+        assertEquals(trace.getRequestId(), error.getString("requestId"));
+        assertEquals("connect", error.getString("stage"));
+        assertEquals("连接失败", error.getString("message"));
+        assertTrue(events.stream().noneMatch(e -> e.getEventType().getName().equals(PREFIX + "SparkComplete")));
+    }
+
+    @Test
+    void summarizerReportsRecordedRequest() throws Exception {
+        ChatTrace trace;
+        Path file;
+        try (Recording recording = startRecording()) {
+            trace = new ChatTrace("s3");
+            trace.queued("BULK");
+            trace.admitted();
+            trace.questionSent();
+            trace.tokenReceived(4);
+            trace.completed();
+            recording.stop();
+            file = tempDir.resolve("summary.jfr");
+            recording.dump(file);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(out, true, "UTF-8"));
+        try {
+            JfrLatencySummary.main(new String[]{file.toString()});
+        } finally {
+            System.setOut(original);
+        }
+        String summary = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(summary.contains("SparkFirstToken"));
+        assertTrue(summary.contains(trace.getRequestId()));
+    }
+
+    @Test
+    void buildsNoEventsWithoutRecording() {
+        ChatTrace trace = new ChatTrace("s4");
+        assertNull(trace.flushStarted(1, false));
+    }
+
+    private Recording startRecording() {
+        Recording recording = new Recording();
+        recording.enable(SparkQueueEvent.class);
+        recording.enable(SparkAuthEvent.class);
+        recording.enable(SparkConnectEvent.class);
+        recording.enable(SparkFirstTokenEvent.class);
+        recording.enable(SparkFlushEvent.class);
+        recording.enable(SparkCompleteEvent.class);
+        recording.enable(SparkErrorEvent.class);
+        recording.start();
+        return recording;
+    }
+
+    private List<RecordedEvent> stop(Recording recording, String fileName) throws Exception {
+        recording.stop();
+        Path file = tempDir.resolve(fileName);
+        recording.dump(file);
+        return RecordingFile.readAllEvents(file).stream()
+                .filter(e -> e.getEventType().getName().startsWith(PREFIX))
+                .sorted((a, b) -> a.getEndTime().compareTo(b.getEndTime()))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,132 @@
+package com.hanzi.robot.replay;
+
+import com.hanzi.robot.jfr.ChatTrace;
+import com.hanzi.robot.websocket.SparkWebSocketClient;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.handler.SessionLimitExceededException;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+class StreamReplayerTests {
+
+    private static final String[] TOKENS = {"你好", "，我是", "星火", "助手。"};
+
+    @Autowired
+    private StreamReplayer streamReplayer;
+
+    @Autowired
+    private SparkWebSocketClient sparkClient;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void recordingRoundTrip() throws Exception {
+        Path file = record(tempDir.resolve("round-trip.sprk"), 0);
+
+        RecordedStream stream = RecordedStream.read(file);
+        assertEquals("你是谁", stream.getQuestion());
+        assertEquals(TOKENS.length, stream.getFrames().size());
+        assertTrue(stream.getFrames().get(0).getText().contains(TOKENS[0]));
+    }
+
+    @Test
+    void replayAsFastAsPossible() throws Exception {
+        Path file = record(tempDir.resolve("fast.sprk"), 0);
+
+        ReplayReport report = streamReplayer.replay(file, false);
+        assertEquals(TOKENS.length, report.getFrames());
+        // 每帧推送一次，最后再推送一次完整回答
+        assertEquals(TOKENS.length + 1, report.getMessagesSent());
+    }
+
+    @Test
+    void replayAtOriginalSpeed() throws Exception {
+        Path file = record(tempDir.resolve("timed.sprk"), 20);
+
+        ReplayReport report = streamReplayer.replay(file, true);
+        assertEquals(TOKENS.length + 1, report.getMessagesSent());
+        assertTrue(report.getElapsedMillis() >= report.getRecordedMillis());
+    }
+
+    @Test
+    void supersededStreamDoesNotTouchNewStream() throws Exception {
+        RecordedStream stream = RecordedStream.read(record(tempDir.resolve("superseded.sprk"), 0));
+        ReplayUserSession userSession = new ReplayUserSession("superseded");
+        WebSocket webSocket = new ReplayWebSocket();
+
+        WebSocketListener first = sparkClient.openStream("superseded", userSession, "你是谁",
+                new ChatTrace("superseded"));
+        WebSocketListener second = sparkClient.openStream("superseded", userSession, "你是谁",
+                new ChatTrace("superseded"));
+
+        // 被取代的回答迟到的帧和关闭回调不能清掉新回答的状态
+        first.onMessage(webSocket, stream.getFrames().get(0).getText());
+        first.onClosed(webSocket, 1000, "被取代");
+        assertTrue(sparkClient.hasActiveStream("superseded"));
+        assertEquals(0, userSession.getMessagesSent());
+
+        for (RecordedStream.Frame frame : stream.getFrames()) {
+            second.onMessage(webSocket, frame.getText());
+        }
+        assertEquals(TOKENS.length + 1, userSession.getMessagesSent());
+        assertFalse(sparkClient.hasActiveStream("superseded"));
+    }
+
+    @Test
+    void slowSessionIsClosedAndStreamAborted() throws Exception {
+        RecordedStream stream = RecordedStream.read(record(tempDir.resolve("slow.sprk"), 0));
+        ReplayUserSession userSession = new ReplayUserSession("slow") {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) {
+                // 和ConcurrentWebSocketSessionDecorator超过发送缓冲上限时的行为一致
+                throw new SessionLimitExceededException("缓冲超限", CloseStatus.SESSION_NOT_RELIABLE);
+            }
+        };
+
+        WebSocketListener listener = sparkClient.openStream("slow", userSession, "你是谁", new ChatTrace("slow"));
+        listener.onMessage(new ReplayWebSocket(), stream.getFrames().get(0).getText());
+
+        assertFalse(userSession.isOpen());
+        assertFalse(sparkClient.hasActiveStream("slow"));
+    }
+
+    /**
+     * 回放真实录制: mvn test -Dtest=StreamReplayerTests -Dreplay.dir=recordings
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "replay.dir", matches = ".+")
+    void replayRecordingDirectory() throws Exception {
+        List<ReplayReport> reports = streamReplayer.replayAll(Paths.get(System.getProperty("replay.dir")),
+                Boolean.getBoolean("replay.realTime"));
+        reports.forEach(System.out::println);
+    }
+
+    private Path record(Path file, long frameIntervalMillis) throws Exception {
+        try (StreamRecordingWriter writer = new StreamRecordingWriter(file, "你是谁")) {
+            for (int i = 0; i < TOKENS.length; i++) {
+                Thread.sleep(frameIntervalMillis);
+                int status = i == TOKENS.length - 1 ? 2 : 1;
+                writer.frame("{\"header\":{\"code\":0,\"message\":\"Success\",\"status\":" + status + "},"
+                        + "\"payload\":{\"choices\":{\"status\":" + status + ",\"seq\":" + i
+                        + ",\"text\":[{\"content\":\"" + TOKENS[i] + "\",\"role\":\"assistant\",\"index\":0}]}}}");
+            }
+        }
+        return file;
+    }
+}
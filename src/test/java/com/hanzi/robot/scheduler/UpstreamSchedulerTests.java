@@ -0,0 +1,141 @@
+package com.hanzi.robot.scheduler;
+
+import com.hanzi.robot.config.SchedulerConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpstreamSchedulerTests {
+
+    private UpstreamScheduler scheduler;
+
+    @BeforeEach
+    void setUp() {
+        SchedulerConfig config = new SchedulerConfig();
+        config.setMaxConcurrentStreams(1);
+        config.getBulk().setQueueDeadline(Duration.ofMillis(100));
+        scheduler = new UpstreamScheduler(config);
+        scheduler.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.destroy();
+    }
+
+    @Test
+    void interactiveOvertakesQueuedBulk() {
+        List<UpstreamScheduler.Permit> held = new ArrayList<>();
+        scheduler.submit(PriorityClass.BULK, held::add, reason -> { });
+        assertEquals(1, held.size());
+
+        // 名额被占满后先排4个bulk再排4个interactive
+        List<PriorityClass> order = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(PriorityClass.BULK, permit -> {
+                order.add(PriorityClass.BULK);
+                held.add(permit);
+            }, reason -> { });
+        }
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(PriorityClass.INTERACTIVE, permit -> {
+                order.add(PriorityClass.INTERACTIVE);
+                held.add(permit);
+            }, reason -> { });
+        }
+        for (int i = 0; i < 8; i++) {
+            held.get(i).release();
+        }
+
+        assertEquals(8, order.size());
+        // 权重8:1，interactive的虚拟完成时间都早于第一个排队的bulk
+        for (int i = 0; i < 4; i++) {
+            assertEquals(PriorityClass.INTERACTIVE, order.get(i));
+        }
+    }
+
+    @Test
+    void queuedRequestIsShedAfterDeadline() throws InterruptedException {
+        scheduler.submit(PriorityClass.API, permit -> { }, reason -> { });
+
+        CountDownLatch shed = new CountDownLatch(1);
+        scheduler.submit(PriorityClass.BULK, permit -> { }, reason -> shed.countDown());
+
+        assertTrue(shed.await(1, TimeUnit.SECONDS));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> bulk = (Map<String, Object>) scheduler.stats().get("bulk");
+        assertEquals(1L, bulk.get("shed"));
+        assertEquals(0, bulk.get("queued"));
+    }
+
+    @Test
+    void releaseIsIdempotent() {
+        List<UpstreamScheduler.Permit> held = new ArrayList<>();
+        scheduler.submit(PriorityClass.API, held::add, reason -> { });
+        held.get(0).release();
+        held.get(0).release();
+
+        assertEquals(0, scheduler.stats().get("inFlight"));
+    }
+
+    @Test
+    void interactiveIsAdmittedWhileBulkSaturates() {
+        SchedulerConfig config = new SchedulerConfig();
+        config.setMaxConcurrentStreams(4);
+        config.getBulk().setMaxInFlight(2);
+        UpstreamScheduler capped = new UpstreamScheduler(config);
+        capped.init();
+        try {
+            List<UpstreamScheduler.Permit> held = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                capped.submit(PriorityClass.BULK, held::add, reason -> { });
+            }
+            // bulk只拿到本类别上限的名额，其余排队，总名额还有空余
+            assertEquals(2, held.size());
+
+            List<UpstreamScheduler.Permit> interactive = new ArrayList<>();
+            capped.submit(PriorityClass.INTERACTIVE, interactive::add, reason -> { });
+            capped.submit(PriorityClass.INTERACTIVE, interactive::add, reason -> { });
+            assertEquals(2, interactive.size());
+
+            // 释放bulk名额只会放行排队的bulk，不会超过上限
+            held.get(0).release();
+            assertEquals(3, held.size());
+            assertEquals(4, capped.stats().get("inFlight"));
+        } finally {
+            capped.destroy();
+        }
+    }
+
+    @Test
+    void shedAllNotifiesDrainOffCallerThread() throws InterruptedException {
+        scheduler.submit(PriorityClass.API, permit -> { }, reason -> { });
+
+        CountDownLatch shed = new CountDownLatch(1);
+        AtomicReference<UpstreamScheduler.ShedReason> shedReason = new AtomicReference<>();
+        AtomicReference<String> shedThread = new AtomicReference<>();
+        scheduler.submit(PriorityClass.INTERACTIVE, permit -> { }, reason -> {
+            shedReason.set(reason);
+            shedThread.set(Thread.currentThread().getName());
+            shed.countDown();
+        });
+
+        assertEquals(1, scheduler.shedAll());
+        assertTrue(shed.await(1, TimeUnit.SECONDS));
+        assertEquals(UpstreamScheduler.ShedReason.DRAIN, shedReason.get());
+        assertEquals("upstream-scheduler-shed", shedThread.get());
+        assertNotEquals(Thread.currentThread().getName(), shedThread.get());
+    }
+}
@@ -0,0 +1,63 @@
+package com.hanzi.robot.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashedTimingWheelTests {
+
+    private final HashedTimingWheel timingWheel = new HashedTimingWheel(10, TimeUnit.MILLISECONDS, 8, "test-wheel");
+
+    @AfterEach
+    void tearDown() {
+        timingWheel.stop();
+    }
+
+    @Test
+    void firesAfterDelay() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timingWheel.newTimeout(latch::countDown, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    void firesAfterMultipleRounds() throws InterruptedException {
+        // 8个槽位 * 10ms = 80ms一圈，200ms需要走两圈多
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timingWheel.newTimeout(latch::countDown, 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    void cancelledTimeoutDoesNotFire() throws InterruptedException {
+        AtomicBoolean fired = new AtomicBoolean();
+        HashedTimingWheel.Timeout timeout = timingWheel.newTimeout(() -> fired.set(true), 30, TimeUnit.MILLISECONDS);
+        timeout.cancel();
+
+        Thread.sleep(150);
+        assertFalse(fired.get());
+    }
+
+    @Test
+    void rejectsTimeoutsAfterStop() {
+        timingWheel.newTimeout(() -> { }, 10, TimeUnit.MILLISECONDS);
+        timingWheel.stop();
+
+        // 停止后提交不能悄悄重启，否则指针没有复位，新任务会在下一个tick提前触发
+        assertThrows(IllegalStateException.class,
+                () -> timingWheel.newTimeout(() -> { }, 10, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,118 @@
+package com.hanzi.robot.websocket;
+
+import com.hanzi.robot.config.DrainConfig;
+import com.hanzi.robot.controller.ChatController;
+import com.hanzi.robot.scheduler.UpstreamScheduler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class GracefulDrainTests {
+
+    private GracefulDrain gracefulDrain;
+    private DrainConfig drainConfig;
+    private ApplicationContext applicationContext;
+    private MessageHandler messageHandler;
+    private SparkWebSocketClient sparkClient;
+    private UpstreamScheduler upstreamScheduler;
+    private ChatController chatController;
+
+    @BeforeEach
+    void setUp() {
+        drainConfig = new DrainConfig();
+        drainConfig.setTimeout(Duration.ofMillis(300));
+        applicationContext = mock(ApplicationContext.class);
+        messageHandler = mock(MessageHandler.class);
+        sparkClient = mock(SparkWebSocketClient.class);
+        upstreamScheduler = mock(UpstreamScheduler.class);
+        chatController = mock(ChatController.class);
+
+        gracefulDrain = new GracefulDrain();
+        ReflectionTestUtils.setField(gracefulDrain, "drainConfig", drainConfig);
+        ReflectionTestUtils.setField(gracefulDrain, "applicationContext", applicationContext);
+        ReflectionTestUtils.setField(gracefulDrain, "messageHandler", messageHandler);
+        ReflectionTestUtils.setField(gracefulDrain, "sparkClient", sparkClient);
+        ReflectionTestUtils.setField(gracefulDrain, "upstreamScheduler", upstreamScheduler);
+        ReflectionTestUtils.setField(gracefulDrain, "chatController", chatController);
+    }
+
+    @Test
+    void waitsForInFlightAnswersToComplete() {
+        when(upstreamScheduler.shedAll()).thenReturn(3);
+        // 一个聊天回答和一个同步测试调用，在期限内先后结束
+        when(sparkClient.activeStreamCount()).thenReturn(1, 1, 0);
+        when(chatController.activeSyncCallCount()).thenReturn(1, 0, 0);
+        when(sparkClient.completedStreamCount()).thenReturn(5L, 6L);
+        when(chatController.completedSyncCallCount()).thenReturn(2L, 3L);
+        when(messageHandler.releaseIdleSessions()).thenReturn(2, 1, 0);
+
+        Map<String, Object> stats = gracefulDrain.drain();
+
+        assertEquals(2, stats.get("inFlight"));
+        assertEquals(2L, stats.get("completed"));
+        assertEquals(0, stats.get("aborted"));
+        assertEquals(3, stats.get("shed"));
+        assertEquals(3, stats.get("released"));
+        assertTrue((Long) stats.get("elapsedMillis") < drainConfig.getTimeout().toMillis());
+
+        // 先摘流、停止接收，再拒绝排队请求
+        InOrder order = inOrder(applicationContext, messageHandler, chatController, upstreamScheduler);
+        order.verify(applicationContext).publishEvent(any(AvailabilityChangeEvent.class));
+        order.verify(messageHandler).startDrain();
+        order.verify(chatController).startDrain();
+        order.verify(upstreamScheduler).shedAll();
+    }
+
+    @Test
+    void abortsAnswersStillRunningAtDeadline() {
+        when(sparkClient.activeStreamCount()).thenReturn(2);
+        when(chatController.activeSyncCallCount()).thenReturn(1);
+        when(sparkClient.completedStreamCount()).thenReturn(4L);
+        when(sparkClient.abortAllStreams(anyString())).thenReturn(2);
+        when(chatController.abortSyncCalls(anyString())).thenReturn(1);
+
+        Map<String, Object> stats = gracefulDrain.drain();
+
+        assertEquals(3, stats.get("inFlight"));
+        assertEquals(0L, stats.get("completed"));
+        assertEquals(3, stats.get("aborted"));
+        assertTrue((Long) stats.get("elapsedMillis") >= drainConfig.getTimeout().toMillis());
+    }
+
+    @Test
+    void drainsOnlyOnceForOwnContext() {
+        gracefulDrain.onApplicationEvent(new ContextClosedEvent(mock(ApplicationContext.class)));
+        verify(messageHandler, never()).startDrain();
+
+        gracefulDrain.onApplicationEvent(new ContextClosedEvent(applicationContext));
+        gracefulDrain.onApplicationEvent(new ContextClosedEvent(applicationContext));
+        verify(messageHandler, times(1)).startDrain();
+    }
+
+    @Test
+    void skipsWhenDisabled() {
+        drainConfig.setEnabled(false);
+
+        gracefulDrain.onApplicationEvent(new ContextClosedEvent(applicationContext));
+        verify(messageHandler, never()).startDrain();
+        verify(upstreamScheduler, never()).shedAll();
+    }
+}
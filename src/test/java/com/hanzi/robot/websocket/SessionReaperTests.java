@@ -0,0 +1,118 @@
+package com.hanzi.robot.websocket;
+
+import com.hanzi.robot.config.ReaperConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class SessionReaperTests {
+
+    private SessionReaper sessionReaper;
+
+    @BeforeEach
+    void setUp() {
+        ReaperConfig config = new ReaperConfig();
+        config.setUserIdleTimeout(Duration.ofMillis(100));
+        config.setUpstreamIdleTimeout(Duration.ofMillis(200));
+        config.setMaxAnswerDuration(Duration.ofMillis(400));
+        config.setTickDuration(Duration.ofMillis(10));
+        config.setTicksPerWheel(64);
+        sessionReaper = new SessionReaper();
+        ReflectionTestUtils.setField(sessionReaper, "reaperConfig", config);
+        sessionReaper.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        sessionReaper.destroy();
+    }
+
+    @Test
+    void reapsIdleUserSessionOffTheWheelThread() throws Exception {
+        CompletableFuture<String> reaped = new CompletableFuture<>();
+        sessionReaper.watchUserSession("s1", reason -> reaped.complete(reason + "@" + Thread.currentThread().getName()));
+
+        String result = reaped.get(1, TimeUnit.SECONDS);
+        assertEquals("IDLE", result.substring(0, result.indexOf('@')));
+        // 回收动作不能在时间轮线程上执行
+        assertNotEquals("session-reaper", result.substring(result.indexOf('@') + 1));
+        assertEquals(1L, sessionReaper.stats().get("reapedUserSessions"));
+        assertEquals(0, sessionReaper.stats().get("watchedUserSessions"));
+    }
+
+    @Test
+    void touchPostponesIdleReap() throws Exception {
+        CompletableFuture<SessionReaper.Reason> reaped = new CompletableFuture<>();
+        sessionReaper.watchUserSession("s1", reaped::complete);
+
+        // 持续活动超过空闲时间的3倍，不应被回收
+        for (int i = 0; i < 10; i++) {
+            TimeUnit.MILLISECONDS.sleep(30);
+            sessionReaper.touchUserSession("s1");
+        }
+        assertFalse(reaped.isDone());
+
+        assertEquals(SessionReaper.Reason.IDLE, reaped.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void reapsUpstreamAtMaxDurationEvenWhenActive() throws Exception {
+        CompletableFuture<SessionReaper.Reason> reaped = new CompletableFuture<>();
+        long start = System.nanoTime();
+        sessionReaper.watchUpstream("s1", reaped::complete);
+
+        while (!reaped.isDone() && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2)) {
+            sessionReaper.touchUpstream("s1");
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+
+        assertEquals(SessionReaper.Reason.MAX_DURATION, reaped.get(1, TimeUnit.SECONDS));
+        assertEquals(1L, sessionReaper.stats().get("reapedOverdueUpstreams"));
+        assertEquals(0L, sessionReaper.stats().get("reapedIdleUpstreams"));
+    }
+
+    @Test
+    void reapsIdleUpstream() throws Exception {
+        CompletableFuture<SessionReaper.Reason> reaped = new CompletableFuture<>();
+        sessionReaper.watchUpstream("s1", reaped::complete);
+
+        assertEquals(SessionReaper.Reason.IDLE, reaped.get(1, TimeUnit.SECONDS));
+        assertEquals(1L, sessionReaper.stats().get("reapedIdleUpstreams"));
+    }
+
+    @Test
+    void unwatchCancelsReap() throws Exception {
+        CompletableFuture<SessionReaper.Reason> reaped = new CompletableFuture<>();
+        sessionReaper.watchUserSession("s1", reaped::complete);
+        sessionReaper.watchUpstream("s1", reaped::complete);
+        sessionReaper.unwatchUserSession("s1");
+        sessionReaper.unwatchUpstream("s1");
+
+        TimeUnit.MILLISECONDS.sleep(600);
+        assertFalse(reaped.isDone());
+        assertEquals(0, sessionReaper.stats().get("watchedUserSessions"));
+        assertEquals(0, sessionReaper.stats().get("watchedUpstreams"));
+        assertEquals(0L, sessionReaper.stats().get("reapedUserSessions"));
+    }
+
+    @Test
+    void rewatchReplacesPreviousWatch() throws Exception {
+        CompletableFuture<SessionReaper.Reason> first = new CompletableFuture<>();
+        CompletableFuture<SessionReaper.Reason> second = new CompletableFuture<>();
+        sessionReaper.watchUpstream("s1", first::complete);
+        sessionReaper.watchUpstream("s1", second::complete);
+
+        assertEquals(SessionReaper.Reason.IDLE, second.get(1, TimeUnit.SECONDS));
+        assertFalse(first.isDone());
+        assertEquals(1L, sessionReaper.stats().get("reapedIdleUpstreams"));
+    }
+}